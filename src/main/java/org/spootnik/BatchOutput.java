@@ -0,0 +1,68 @@
+package org.spootnik;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output of a batch of tasks run by <tt>run-batch</tt> in <tt>lein-server.clj</tt>,
+ * copied to the build log. The marker line printed after each task, made of the
+ * batch id, the index of the task, its exit code and its duration, is replaced
+ * by a readable line and recorded.
+ */
+class BatchOutput extends LineTransformationOutputStream {
+
+	private final Pattern marker;
+	private final List<String> tasks;
+	private final OutputStream out;
+	private final Integer[] exitValues;
+	private final long[] durations;
+
+	BatchOutput(String batchId, List<String> tasks, OutputStream out) {
+		this.marker = Pattern.compile("^" + Pattern.quote(batchId) + " (\\d+) (-?\\d+) (\\d+)\\r?\\n?$");
+		this.tasks = tasks;
+		this.out = out;
+		this.exitValues = new Integer[tasks.size()];
+		this.durations = new long[tasks.size()];
+	}
+
+	@Override
+	protected synchronized void eol(byte[] b, int len) throws IOException {
+		Matcher m = marker.matcher(new String(b, 0, len, StandardCharsets.UTF_8));
+		if(m.matches()) {
+			int index = Integer.parseInt(m.group(1));
+			if(index < tasks.size()) {
+				exitValues[index] = Integer.parseInt(m.group(2));
+				durations[index] = Long.parseLong(m.group(3));
+				out.write(("Leiningen task " + tasks.get(index) + " exited with " + exitValues[index] + "\n")
+						.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+		}
+		out.write(b, 0, len);
+	}
+
+	/**
+	 * Exit code of the task with the given index, or null if it did not finish.
+	 */
+	synchronized Integer exitValue(int index) {
+		return exitValues[index];
+	}
+
+	/**
+	 * Duration in milliseconds of the task with the given index, if it finished.
+	 */
+	synchronized long duration(int index) {
+		return durations[index];
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+}
@@ -0,0 +1,225 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Access-ordered index of the {@link OutputCache} of a node, kept in the
+ * agent JVM, that evicts the least recently used entries once the blobs of
+ * the cache take more than a budget.
+ *
+ * <p>
+ * Entries share the blobs of identical files, so the index counts the
+ * references to each blob and only deletes a blob once no entry uses it.
+ * It is loaded from the manifests on first use, in the order they were last
+ * used, which is when they were written or restored. Blobs and temporary files
+ * that no manifest refers to, left over from interrupted builds, are deleted then.
+ */
+final class CacheIndex {
+
+	/**
+	 * Files this old that no manifest refers to are not being written any more.
+	 */
+	private static final long ORPHAN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private static final Map<String,CacheIndex> INDEXES = new ConcurrentHashMap<>();
+
+	private final File cache;
+
+	/**
+	 * Blob of each file of each entry, least recently used entry first.
+	 */
+	private final LinkedHashMap<String,List<String>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<String,Integer> references = new HashMap<>();
+	private final Map<String,Long> sizes = new HashMap<>();
+	private long storedBytes;
+	private long logicalBytes;
+
+	private CacheIndex(File cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Size of a cache and what its last eviction freed.
+	 */
+	static final class Stats implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final int entries;
+		/**
+		 * Bytes of the blobs, each stored once.
+		 */
+		final long storedBytes;
+		/**
+		 * Bytes of the files of all entries, as if identical files were not shared.
+		 */
+		final long logicalBytes;
+		final int evictedEntries;
+		final long evictedBytes;
+
+		Stats(int entries, long storedBytes, long logicalBytes, int evictedEntries, long evictedBytes) {
+			this.entries = entries;
+			this.storedBytes = storedBytes;
+			this.logicalBytes = logicalBytes;
+			this.evictedEntries = evictedEntries;
+			this.evictedBytes = evictedBytes;
+		}
+	}
+
+	static synchronized CacheIndex of(File cache) throws IOException {
+		String path = cache.getAbsolutePath();
+		CacheIndex index = INDEXES.get(path);
+		if(index == null) {
+			index = new CacheIndex(cache);
+			index.load();
+			INDEXES.put(path, index);
+		}
+		return index;
+	}
+
+	private synchronized void load() throws IOException {
+		File[] manifests = new File(cache, "manifests").listFiles((dir, name) -> !name.endsWith(".tmp"));
+		if(manifests != null) {
+			Arrays.sort(manifests, Comparator.comparingLong(File::lastModified));
+			for(File manifest : manifests) {
+				try {
+					added(manifest.getName(), OutputCache.Manifest.read(manifest).files.values());
+				} catch(IOException | RuntimeException e) {
+					// unreadable, it will be written again by the next run of its task
+					manifest.delete();
+				}
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Deletes old temporary files, and blobs that no entry refers to.
+	 */
+	private void compact() {
+		long old = System.currentTimeMillis() - ORPHAN_MILLIS;
+		List<File> files = new ArrayList<>();
+		File[] manifests = new File(cache, "manifests").listFiles((dir, name) -> name.endsWith(".tmp"));
+		if(manifests != null) {
+			files.addAll(Arrays.asList(manifests));
+		}
+		File[] blobDirs = new File(cache, "blobs").listFiles();
+		if(blobDirs != null) {
+			for(File blobDir : blobDirs) {
+				File[] blobs = blobDir.listFiles();
+				if(blobs != null) {
+					for(File blob : blobs) {
+						if(blob.getName().endsWith(".tmp") || !references.containsKey(blob.getName())) {
+							files.add(blob);
+						}
+					}
+				}
+			}
+		}
+		for(File file : files) {
+			if(file.lastModified() < old) {
+				file.delete();
+			}
+		}
+	}
+
+	synchronized void touched(String key) {
+		entries.get(key);
+	}
+
+	/**
+	 * Adds or replaces an entry, as the most recently used one.
+	 *
+	 * @param blobs
+	 *      Blob of each file of the entry.
+	 */
+	synchronized void added(String key, Collection<String> blobs) {
+		List<String> added = new ArrayList<>(blobs);
+		for(String blob : added) {
+			int count = references.merge(blob, 1, Integer::sum);
+			if(count == 1) {
+				long size = OutputCache.blob(cache, blob).length();
+				sizes.put(blob, size);
+				storedBytes += size;
+			}
+			logicalBytes += sizes.get(blob);
+		}
+		List<String> replaced = entries.remove(key);
+		entries.put(key, added);
+		if(replaced != null) {
+			release(replaced);
+		}
+	}
+
+	/**
+	 * Drops references to blobs, deleting those no entry uses any more.
+	 *
+	 * @return the bytes freed
+	 */
+	private long release(List<String> blobs) {
+		long freed = 0;
+		for(String blob : blobs) {
+			long size = sizes.get(blob);
+			logicalBytes -= size;
+			if(references.merge(blob, -1, Integer::sum) == 0) {
+				references.remove(blob);
+				sizes.remove(blob);
+				storedBytes -= size;
+				freed += size;
+				OutputCache.blob(cache, blob).delete();
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Evicts the least recently used entries until the blobs take no more than the budget.
+	 */
+	synchronized Stats evict(long budgetBytes) {
+		int evictedEntries = 0;
+		long evictedBytes = 0;
+		Iterator<Map.Entry<String,List<String>>> lru = entries.entrySet().iterator();
+		while(storedBytes > budgetBytes && lru.hasNext()) {
+			Map.Entry<String,List<String>> entry = lru.next();
+			// the manifest goes first, so no build restores an entry whose blobs are being deleted
+			OutputCache.manifest(cache, entry.getKey()).delete();
+			lru.remove();
+			evictedBytes += release(entry.getValue());
+			evictedEntries++;
+		}
+		return new Stats(entries.size(), storedBytes, logicalBytes, evictedEntries, evictedBytes);
+	}
+
+	/**
+	 * Evicts entries of the cache of a node on the agent, in the background of builds.
+	 */
+	static final class Evict extends MasterToSlaveCallable<Stats,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cacheDir;
+		private final long budgetBytes;
+
+		Evict(String cacheDir, long budgetBytes) {
+			this.cacheDir = cacheDir;
+			this.budgetBytes = budgetBytes;
+		}
+
+		public Stats call() throws IOException {
+			return of(new File(cacheDir)).evict(budgetBytes);
+		}
+	}
+}
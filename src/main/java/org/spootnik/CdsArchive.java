@@ -0,0 +1,206 @@
+package org.spootnik;
+
+import hudson.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Class data sharing archive of the Leiningen jar, which lets lein JVMs map
+ * already parsed Clojure and Leiningen classes instead of loading them.
+ *
+ * <p>
+ * The archive is stored next to the jar, named after the checksum of the jar
+ * and of the JDK version, so a new jar or JDK gets a new archive. It is
+ * generated by the first lein JVM that runs without one, using
+ * <tt>-XX:ArchiveClassesAtExit</tt>, which needs JDK 13 or later. Archives
+ * for other checksums of the same jar are deleted at that point.
+ */
+final class CdsArchive {
+
+	private CdsArchive() {
+	}
+
+	/**
+	 * JVM options for a lein JVM, and the lock to release once it exited if
+	 * that JVM generates the archive.
+	 */
+	static final class Options implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final List<String> jvmOptions;
+		final String lock;
+
+		Options(List<String> jvmOptions, String lock) {
+			this.jvmOptions = jvmOptions;
+			this.lock = lock;
+		}
+	}
+
+	static final Options NONE = new Options(Collections.emptyList(), null);
+
+	/**
+	 * A lock older than this is left over from a JVM that was killed.
+	 */
+	private static final long STALE_LOCK_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	private static final long JAVA_VERSION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Checksums of jars, by path, size and modification time.
+	 */
+	private static final Map<String,String> JAR_CHECKSUMS = new ConcurrentHashMap<>();
+
+	/**
+	 * Output of <tt>java -version</tt> by executable, with the time it was read.
+	 */
+	private static final Map<String,Object[]> JAVA_VERSIONS = new ConcurrentHashMap<>();
+
+	/**
+	 * Finds out how a lein JVM should use the archive, on the agent.
+	 */
+	static final class Prepare extends MasterToSlaveCallable<Options,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String java;
+		private final String jarPath;
+
+		Prepare(String java, String jarPath) {
+			this.java = java;
+			this.jarPath = jarPath;
+		}
+
+		public Options call() throws IOException {
+			File jar = new File(jarPath);
+			String version = javaVersion(java);
+			if(!jar.isFile() || version == null || majorVersion(version) < 13) {
+				return NONE;
+			}
+
+			File archive = new File(jar.getParentFile(), jar.getName() + "." + jarChecksum(jar).substring(0, 12)
+					+ "-" + Util.getDigestOf(version).substring(0, 8) + ".jsa");
+			if(archive.isFile() && archive.length() > 0) {
+				return new Options(Collections.singletonList("-XX:SharedArchiveFile=" + archive), null);
+			}
+
+			// Only one JVM generates the archive, the others run without it meanwhile
+			File lock = new File(archive.getPath() + ".lock");
+			if(lock.exists() && System.currentTimeMillis() - lock.lastModified() > STALE_LOCK_MILLIS) {
+				lock.delete();
+			}
+			try {
+				if(!lock.createNewFile()) {
+					return NONE;
+				}
+			} catch(IOException e) {
+				// the jar directory is not writable
+				return NONE;
+			}
+			deleteOtherArchives(jar, archive);
+			return new Options(Collections.singletonList("-XX:ArchiveClassesAtExit=" + archive), lock.getPath());
+		}
+	}
+
+	/**
+	 * Releases the lock taken to generate the archive, on the agent.
+	 */
+	static final class Release extends MasterToSlaveCallable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String lock;
+
+		Release(String lock) {
+			this.lock = lock;
+		}
+
+		public Void call() throws IOException {
+			new File(lock).delete();
+			return null;
+		}
+	}
+
+	private static void deleteOtherArchives(File jar, File archive) {
+		File[] archives = jar.getParentFile().listFiles((dir, name) ->
+				name.startsWith(jar.getName() + ".") && name.endsWith(".jsa"));
+		if(archives != null) {
+			for(File other : archives) {
+				if(!other.equals(archive)) {
+					other.delete();
+				}
+			}
+		}
+	}
+
+	static String jarChecksum(File jar) throws IOException {
+		String key = jar.getAbsolutePath() + ":" + jar.length() + ":" + jar.lastModified();
+		String checksum = JAR_CHECKSUMS.get(key);
+		if(checksum == null) {
+			checksum = Util.getDigestOf(jar);
+			JAR_CHECKSUMS.put(key, checksum);
+		}
+		return checksum;
+	}
+
+	/**
+	 * The output of <tt>java -version</tt>, or null if java could not be run.
+	 */
+	static String javaVersion(String java) {
+		Object[] cached = JAVA_VERSIONS.get(java);
+		if(cached != null && System.currentTimeMillis() - (Long) cached[1] < JAVA_VERSION_TTL_MILLIS) {
+			return (String) cached[0];
+		}
+		String version = null;
+		try {
+			Process process = new ProcessBuilder(java, "-version").redirectErrorStream(true).start();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try(InputStream in = process.getInputStream()) {
+				byte[] buf = new byte[4096];
+				int n;
+				while((n = in.read(buf)) != -1) {
+					out.write(buf, 0, n);
+				}
+			}
+			if(process.waitFor() == 0) {
+				version = out.toString("UTF-8").trim();
+			}
+		} catch(IOException e) {
+			// not a usable java executable
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		JAVA_VERSIONS.put(java, new Object[] { version, System.currentTimeMillis() });
+		return version;
+	}
+
+	private static final Pattern VERSION = Pattern.compile("version \"(1\\.)?(\\d+)");
+
+	/**
+	 * Major version from the output of <tt>java -version</tt>, e.g. 8 for "1.8.0_292" or 17 for "17.0.9".
+	 */
+	static int majorVersion(String version) {
+		Matcher m = VERSION.matcher(version);
+		return m.find() ? Integer.parseInt(m.group(2)) : -1;
+	}
+
+	/**
+	 * Adds the archive options to a JVM command line, right after the java executable.
+	 */
+	static List<String> apply(List<String> command, Options options) {
+		List<String> result = new ArrayList<>(command);
+		result.addAll(1, options.jvmOptions);
+		return result;
+	}
+}
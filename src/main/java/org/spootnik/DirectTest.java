@@ -0,0 +1,179 @@
+package org.spootnik;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Runs <tt>lein test</tt> without Leiningen, on a classpath cached per node.
+ *
+ * <p>
+ * The first run reads the project in a Leiningen JVM with
+ * <tt>lein-describe.clj</tt>, which prints the JVM arguments, classpath,
+ * test paths and injections of the test JVM. That description is cached on
+ * the node, keyed by a checksum of <tt>project.clj</tt>, the profiles given
+ * to the task and the <tt>profiles.clj</tt> files of the project and of
+ * Leiningen. Runs with the same key start the test JVM directly, with
+ * <tt>test-runner.clj</tt> finding and running the tests.
+ */
+final class DirectTest {
+
+	private DirectTest() {
+	}
+
+	private static final String PREFIX = "leiningen-plugin ";
+
+	/**
+	 * What the test JVM of a project needs, as described by <tt>lein-describe.clj</tt>.
+	 */
+	static final class Description {
+		final List<String> jvmArguments = new ArrayList<>();
+		final List<String> testPaths = new ArrayList<>();
+		final List<String> injections = new ArrayList<>();
+		String classpath;
+		/**
+		 * Why the tests must run through Leiningen, or null if they need not.
+		 */
+		String unsupported;
+
+		boolean isComplete() {
+			return unsupported != null || classpath != null;
+		}
+	}
+
+	/**
+	 * Parses the lines printed by <tt>lein-describe.clj</tt>, ignoring any other output.
+	 */
+	static Description parse(String output) {
+		Description description = new Description();
+		for(String line : output.split("\r?\n")) {
+			if(!line.startsWith(PREFIX)) {
+				continue;
+			}
+			String[] kindAndValue = line.substring(PREFIX.length()).split(" ", 2);
+			String value = kindAndValue.length > 1 ? kindAndValue[1] : "";
+			switch(kindAndValue[0]) {
+			case "jvm": description.jvmArguments.add(value); break;
+			case "classpath": description.classpath = value; break;
+			case "test-path": description.testPaths.add(value); break;
+			case "injection": description.injections.add(value); break;
+			case "unsupported": description.unsupported = value; break;
+			default: // written by a newer version of the script
+			}
+		}
+		return description;
+	}
+
+	/**
+	 * Profiles a task adds to the default ones if it is a plain <tt>lein test</tt>,
+	 * optionally run with <tt>with-profile +a,+b</tt>.
+	 *
+	 * @return the profiles, or null if the task is something else
+	 */
+	static List<String> profiles(List<String> arguments) {
+		List<String> profiles = new ArrayList<>();
+		int test = 0;
+		if(arguments.size() >= 3 && arguments.get(0).equals("with-profile")) {
+			for(String profile : arguments.get(1).split(",")) {
+				// Profiles that replace or remove the default ones need Leiningen's own logic
+				if(!profile.startsWith("+") || profile.length() == 1) {
+					return null;
+				}
+				profiles.add(profile.substring(1));
+			}
+			test = 2;
+		}
+		if(arguments.size() <= test || !arguments.get(test).equals("test")) {
+			return null;
+		}
+		for(String namespace : namespaces(arguments)) {
+			// Selectors, files and :only are left to Leiningen
+			if(namespace.startsWith(":") || namespace.contains("/") || namespace.endsWith(".clj")) {
+				return null;
+			}
+		}
+		return profiles;
+	}
+
+	/**
+	 * Namespaces given to a task accepted by {@link #profiles(List)}.
+	 */
+	static List<String> namespaces(List<String> arguments) {
+		return arguments.subList(arguments.indexOf("test") + 1, arguments.size());
+	}
+
+	/**
+	 * The command running the tests of the described project in a new JVM.
+	 *
+	 * @param jvmOptions
+	 *      Options of the plugin, before those of the project so the project can override them.
+	 */
+	static List<String> command(String java, List<String> jvmOptions, Description description, List<String> namespaces)
+			throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(java);
+		command.addAll(jvmOptions);
+		command.addAll(description.jvmArguments);
+		command.add("-cp");
+		command.add(description.classpath);
+		command.add("clojure.main");
+		command.add("-e");
+		command.add(script("test-runner.clj"));
+		command.add("-e");
+		command.add("(leiningen-plugin.test-runner/run " + vector(description.testPaths) + " "
+				+ vector(namespaces) + " " + vector(description.injections) + ")");
+		return command;
+	}
+
+	/**
+	 * The form calling <tt>lein-describe.clj</tt> for a project directory.
+	 */
+	static String describeForm(String dir, List<String> profiles) {
+		StringBuilder keywords = new StringBuilder();
+		for(String profile : profiles) {
+			keywords.append(keywords.length() == 0 ? "" : " ").append(':').append(profile);
+		}
+		return "(leiningen-plugin.describe/describe " + string(dir) + " [" + keywords + "])";
+	}
+
+	/**
+	 * A Clojure vector of vectors of strings.
+	 */
+	static String vectors(List<List<String>> values) {
+		StringBuilder vector = new StringBuilder("[");
+		for(List<String> value : values) {
+			vector.append(vector.length() == 1 ? "" : " ").append(vector(value));
+		}
+		return vector.append(']').toString();
+	}
+
+	/**
+	 * A Clojure vector of strings.
+	 */
+	static String vector(List<String> values) {
+		StringBuilder vector = new StringBuilder("[");
+		for(String value : values) {
+			vector.append(vector.length() == 1 ? "" : " ").append(string(value));
+		}
+		return vector.append(']').toString();
+	}
+
+	/**
+	 * A Clojure string literal.
+	 */
+	static String string(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Content of a Clojure script of the plugin.
+	 */
+	static String script(String name) throws IOException {
+		try(InputStream in = DirectTest.class.getResourceAsStream(name)) {
+			return IOUtils.toString(in, "UTF-8");
+		}
+	}
+}
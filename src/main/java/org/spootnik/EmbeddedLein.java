@@ -0,0 +1,181 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leiningen loaded in the agent JVM, in a class loader of its own that only
+ * sees the Leiningen jar and the JDK, running tasks with the <tt>run-task</tt>
+ * function of <tt>lein-server.clj</tt>.
+ *
+ * <p>
+ * There is one instance per jar path, reused by all builds until the checksum
+ * of the jar changes. Leiningen keeps global state, so an instance runs one
+ * task at a time, on a thread of its own. A task that is interrupted cannot be
+ * stopped safely, so its instance is dropped instead, and its class loader is
+ * closed once the task ends.
+ */
+final class EmbeddedLein {
+
+	private static final Logger LOGGER = Logger.getLogger(EmbeddedLein.class.getName());
+
+	private static final Map<String,EmbeddedLein> INSTANCES = new HashMap<>();
+
+	private final String jarPath;
+	private final String checksum;
+	private final URLClassLoader loader;
+	private final Method var;
+	private final Class<?> ifn;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ExecutorService worker;
+	private boolean initialized;
+	private volatile boolean discarded;
+
+	private EmbeddedLein(String jarPath, File jar, String checksum) throws IOException {
+		this.jarPath = jarPath;
+		this.checksum = checksum;
+		// No parent but the bootstrap loader, so the agent's own libraries are not visible
+		this.loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+		try {
+			this.var = loader.loadClass("clojure.java.api.Clojure").getMethod("var", Object.class, Object.class);
+			this.ifn = loader.loadClass("clojure.lang.IFn");
+		} catch(ClassNotFoundException | NoSuchMethodException e) {
+			loader.close();
+			throw new IOException(jar + " does not contain Clojure 1.6 or later", e);
+		}
+		this.worker = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Embedded Leiningen");
+			t.setDaemon(true);
+			// Clojure loads and defines classes through the context class loader
+			t.setContextClassLoader(loader);
+			return t;
+		});
+	}
+
+	/**
+	 * The instance for the jar, replacing the cached one if the jar changed.
+	 */
+	static synchronized EmbeddedLein get(String jarPath) throws IOException {
+		File jar = new File(jarPath);
+		if(!jar.isFile()) {
+			throw new IOException("Leiningen jar " + jarPath + " not found");
+		}
+		String checksum = CdsArchive.jarChecksum(jar);
+		EmbeddedLein instance = INSTANCES.get(jarPath);
+		if(instance == null || !instance.checksum.equals(checksum)) {
+			if(instance != null) {
+				instance.discard();
+			}
+			instance = new EmbeddedLein(jarPath, jar, checksum);
+			INSTANCES.put(jarPath, instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Runs a task, printing its output to out.
+	 *
+	 * @param script
+	 *      Content of <tt>lein-server.clj</tt>, loaded on first use.
+	 * @param env
+	 *      Environment of the build, passed on to the JVMs the task forks.
+	 * @return the exit code of the task
+	 * @throws InterruptedException
+	 *      if the thread was interrupted, in which case the task may still be running
+	 */
+	int run(String script, String dir, Map<String,String> env, List<String> args, OutputStream out)
+			throws IOException, InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if(discarded) {
+				throw new IOException("Embedded Leiningen was stopped by an aborted task, run the task again");
+			}
+			Future<Integer> task = worker.submit(() -> {
+				if(!initialized) {
+					call("clojure.core", "load-string", script);
+					call("clojure.core", "load-string", "(when-let [init (resolve 'leiningen.core.user/init)] (init))");
+					initialized = true;
+				}
+				call("clojure.core", "load-string",
+						"(when-let [f (resolve 'leiningen.core.project/ensure-dynamic-classloader)] (f))");
+
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
+				Object exitCode = call("leiningen-plugin.server", "run-task", dir, env, args, writer);
+				writer.flush();
+				return ((Number) exitCode).intValue();
+			});
+			try {
+				return task.get();
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Leiningen failed", e.getCause());
+			} catch(InterruptedException e) {
+				discard();
+				task.cancel(true);
+				throw e;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops reusing this instance, and closes it once its running task ends.
+	 */
+	private void discard() {
+		synchronized(EmbeddedLein.class) {
+			INSTANCES.remove(jarPath, this);
+			if(discarded) {
+				return;
+			}
+			discarded = true;
+		}
+		worker.submit(this::close);
+		worker.shutdown();
+	}
+
+	private Object call(String ns, String name, Object... args) throws IOException {
+		try {
+			if(!ns.equals("clojure.core")) {
+				call("clojure.core", "require", call("clojure.core", "symbol", ns));
+			}
+			Object fn = var.invoke(null, ns, name);
+			Class<?>[] types = new Class<?>[args.length];
+			Arrays.fill(types, Object.class);
+			return ifn.getMethod("invoke", types).invoke(fn, args);
+		} catch(InvocationTargetException e) {
+			throw new IOException("Leiningen failed in " + ns + "/" + name, e.getCause());
+		} catch(IllegalAccessException | NoSuchMethodException e) {
+			throw new IOException("Cannot call " + ns + "/" + name, e);
+		}
+	}
+
+	private void close() {
+		try {
+			loader.close();
+		} catch(IOException e) {
+			LOGGER.log(Level.FINE, "Failed to close the class loader of Leiningen", e);
+		}
+	}
+}
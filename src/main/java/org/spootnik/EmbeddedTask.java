@@ -0,0 +1,50 @@
+package org.spootnik;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Runs a task with the {@link EmbeddedLein} of the agent, streaming its output to the build log.
+ */
+class EmbeddedTask extends MasterToSlaveCallable<Integer,IOException> {
+	private static final long serialVersionUID = 1L;
+
+	private final String jarPath;
+	private final String script;
+	private final String dir;
+	private final Map<String,String> env;
+	private final List<String> args;
+	private final TaskListener listener;
+
+	/**
+	 * @param script
+	 *      Content of <tt>lein-server.clj</tt>.
+	 * @param env
+	 *      Environment of the build.
+	 */
+	EmbeddedTask(String jarPath, String script, String dir, Map<String,String> env, List<String> args,
+			TaskListener listener) {
+		this.jarPath = jarPath;
+		this.script = script;
+		this.dir = dir;
+		this.env = env;
+		this.args = args;
+		this.listener = listener;
+	}
+
+	public Integer call() throws IOException {
+		try {
+			return EmbeddedLein.get(jarPath).run(script, dir, env, args, listener.getLogger());
+		} catch(InterruptedException e) {
+			InterruptedIOException interrupted = new InterruptedIOException("Leiningen task interrupted");
+			interrupted.initCause(e);
+			throw interrupted;
+		}
+	}
+}
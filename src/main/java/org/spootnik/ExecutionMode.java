@@ -0,0 +1,33 @@
+package org.spootnik;
+
+/**
+ * How the Leiningen JVM of a task is obtained.
+ */
+public enum ExecutionMode {
+	/**
+	 * A new JVM for each task, the default.
+	 */
+	FORK("Start a new JVM for each task"),
+	/**
+	 * A long-lived JVM per node and Leiningen jar, running one task at a time.
+	 */
+	DAEMON("Send tasks to a warm Leiningen daemon on the node"),
+	/**
+	 * Pre-started JVMs per node and Leiningen jar, each running a single task.
+	 */
+	POOL("Hand tasks to pre-started Leiningen JVMs on the node"),
+	/**
+	 * Leiningen loaded in the agent JVM, running one task at a time.
+	 */
+	EMBEDDED("Run tasks inside the agent JVM, one at a time");
+
+	private final String displayName;
+
+	ExecutionMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
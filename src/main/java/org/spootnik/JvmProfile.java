@@ -0,0 +1,82 @@
+package org.spootnik;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JIT and garbage collector options of a Leiningen JVM, tuned for the kind of task it runs.
+ */
+public enum JvmProfile {
+	/**
+	 * The options the plugin always used.
+	 */
+	DEFAULT("Default", "-client", "-XX:+TieredCompilation"),
+	/**
+	 * {@link #STARTUP} for tasks that took less than {@link #STARTUP_THRESHOLD_MILLIS}
+	 * in recent builds, {@link #THROUGHPUT} for the others and {@link #DEFAULT}
+	 * for tasks that never ran.
+	 */
+	AUTO("Chosen from the recent durations of each task"),
+	/**
+	 * Stops at the C1 compiler and uses the serial collector, so short tasks
+	 * spend as little as possible on compiling and on GC threads.
+	 */
+	STARTUP("Startup: C1 only, serial GC", "-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1",
+			"-XX:+UseSerialGC", "-Xshare:auto"),
+	/**
+	 * Full tiered compilation and the parallel collector, for long compilations and test suites.
+	 */
+	THROUGHPUT("Throughput: C2, parallel GC", "-server", "-XX:+TieredCompilation", "-XX:+UseParallelGC");
+
+	static final long STARTUP_THRESHOLD_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private final String displayName;
+	private final List<String> options;
+
+	JvmProfile(String displayName, String... options) {
+		this.displayName = displayName;
+		this.options = Collections.unmodifiableList(Arrays.asList(options));
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * JVM options of the profile, which must be resolved.
+	 */
+	List<String> options() {
+		return options;
+	}
+
+	/**
+	 * The profile to run a task with given its median duration in milliseconds, or -1 if unknown.
+	 */
+	JvmProfile resolve(long medianDuration) {
+		if(this != AUTO) {
+			return this;
+		}
+		if(medianDuration < 0) {
+			return DEFAULT;
+		}
+		return medianDuration < STARTUP_THRESHOLD_MILLIS ? STARTUP : THROUGHPUT;
+	}
+
+	/**
+	 * The profile named in a task attribute, ignoring case.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if there is no such profile
+	 */
+	static JvmProfile forName(String name) {
+		try {
+			return valueOf(name.toUpperCase(Locale.ENGLISH));
+		} catch(IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown JVM profile \"" + name + "\", expected one of "
+					+ Arrays.toString(values()).toLowerCase(Locale.ENGLISH));
+		}
+	}
+}
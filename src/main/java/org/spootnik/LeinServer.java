@@ -0,0 +1,282 @@
+package org.spootnik;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A Leiningen JVM that was started ahead of time and runs tasks sent to it
+ * over a local socket, see <tt>lein-server.clj</tt>.
+ *
+ * <p>
+ * Instances live in the agent JVM. The warm daemons of {@link #daemon(List, String, String)}
+ * stay up across builds, one for each distinct JVM command line and
+ * <tt>LEIN_HOME</tt>, until they have been idle for {@link #IDLE_MILLIS}.
+ * Each task runs with the environment of its build, which Leiningen passes on
+ * to the JVMs it forks.
+ */
+final class LeinServer {
+
+	private static final Logger LOGGER = Logger.getLogger(LeinServer.class.getName());
+
+	/**
+	 * Server JVMs idle for this long are stopped.
+	 */
+	static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	/**
+	 * Stops idle server JVMs.
+	 */
+	static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Leiningen idle JVM reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final Map<List<String>,LeinServer> DAEMONS = new HashMap<>();
+
+	private final Process process;
+	private final int port;
+	private final String secret = UUID.randomUUID().toString();
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile boolean busy;
+
+	/**
+	 * @param leinHome
+	 *      <tt>LEIN_HOME</tt> of the JVM, or null for the one of the agent.
+	 */
+	private LeinServer(List<String> command, String leinHome, String script, boolean once) throws IOException {
+		List<String> cmd = new ArrayList<>(command);
+		cmd.add("clojure.main");
+		cmd.add("-e");
+		cmd.add(script);
+		cmd.add("-e");
+		cmd.add("(leiningen-plugin.server/serve " + once + ")");
+
+		ProcessBuilder builder = new ProcessBuilder(cmd).redirectErrorStream(true);
+		if(leinHome != null) {
+			builder.environment().put("LEIN_HOME", leinHome);
+		}
+		process = builder.start();
+		try {
+			Writer stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+			stdin.write(secret + "\n");
+			stdin.flush();
+
+			// The first line printed is the port, anything else is only logged
+			InputStream stdout = process.getInputStream();
+			String line;
+			while((line = readLine(stdout)) != null && !line.matches("\\d+")) {
+				LOGGER.fine(line);
+			}
+			if(line == null) {
+				throw new IOException("Leiningen server exited with " + process.waitFor());
+			}
+			port = Integer.parseInt(line);
+			Thread drain = new Thread(() -> {
+				try {
+					String l;
+					while((l = readLine(stdout)) != null) {
+						LOGGER.fine(l);
+					}
+				} catch(IOException e) {
+					// the server exited
+				}
+			}, "Leiningen server output");
+			drain.setDaemon(true);
+			drain.start();
+		} catch(IOException | RuntimeException e) {
+			process.destroy();
+			throw e;
+		} catch(InterruptedException e) {
+			process.destroy();
+			throw new IOException("Interrupted while starting the Leiningen server", e);
+		}
+	}
+
+	/**
+	 * Starts a server that runs a single task and then exits.
+	 */
+	static LeinServer startOnce(List<String> command, String leinHome, String script) throws IOException {
+		return new LeinServer(command, leinHome, script, true);
+	}
+
+	/**
+	 * The warm daemon for the JVM command line and <tt>LEIN_HOME</tt>, started if it is not running.
+	 */
+	static synchronized LeinServer daemon(List<String> command, String leinHome, String script) throws IOException {
+		List<String> key = key(command, leinHome);
+		LeinServer daemon = DAEMONS.get(key);
+		if(daemon == null || !daemon.isAlive()) {
+			LOGGER.info("Starting Leiningen daemon: " + command);
+			daemon = new LeinServer(command, leinHome, script, false);
+			DAEMONS.put(key, daemon);
+		}
+		// Not idle, so the reaper leaves it to the task
+		daemon.lastUsed = System.currentTimeMillis();
+		return daemon;
+	}
+
+	/**
+	 * Key of the daemons and pools of a JVM command line and <tt>LEIN_HOME</tt>.
+	 */
+	static List<String> key(List<String> command, String leinHome) {
+		List<String> key = new ArrayList<>(command);
+		key.add(String.valueOf(leinHome));
+		return key;
+	}
+
+	/**
+	 * Stops the daemon of the JVM command line and <tt>LEIN_HOME</tt>, unless it is running a task.
+	 */
+	static synchronized void stopIdleDaemon(List<String> command, String leinHome) {
+		LeinServer daemon = DAEMONS.get(key(command, leinHome));
+		if(daemon != null && !daemon.busy) {
+			LOGGER.info("Stopping idle Leiningen daemon to free memory: " + command);
+			daemon.stop();
+			DAEMONS.remove(key(command, leinHome));
+		}
+	}
+
+	/**
+	 * Stops the daemons that have been idle for {@link #IDLE_MILLIS}.
+	 */
+	private static synchronized void reapDaemons() {
+		for(Iterator<LeinServer> i = DAEMONS.values().iterator(); i.hasNext();) {
+			LeinServer daemon = i.next();
+			if(!daemon.isAlive() || daemon.isIdle()) {
+				LOGGER.info("Stopping idle Leiningen daemon");
+				daemon.stop();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Whether the server has run no task for {@link #IDLE_MILLIS}.
+	 */
+	boolean isIdle() {
+		return !busy && System.currentTimeMillis() - lastUsed >= IDLE_MILLIS;
+	}
+
+	boolean isAlive() {
+		try {
+			process.exitValue();
+			return false;
+		} catch(IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	void stop() {
+		process.destroy();
+	}
+
+	/**
+	 * Runs a task, one at a time, and copies its output to out.
+	 *
+	 * @param env
+	 *      Environment of the build.
+	 * @return the exit code of the task
+	 * @throws IOException
+	 *      if the server died before the task finished, or the thread was
+	 *      interrupted, in which case the server is still running the task
+	 */
+	synchronized int run(String dir, Map<String,String> env, List<String> args, OutputStream out) throws IOException {
+		String id = UUID.randomUUID().toString();
+		busy = true;
+		// Unlike a socket, a channel is closed when the thread is interrupted, e.g. when the build is aborted
+		try(SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+			Writer request = new OutputStreamWriter(Channels.newOutputStream(socket), StandardCharsets.UTF_8);
+			request.write(secret + "\n" + id + "\n" + dir + "\n" + map(env) + "\n");
+			for(String arg : args) {
+				request.write(arg + "\n");
+			}
+			request.write("\n");
+			request.flush();
+
+			// Copy the output up to the line with the task id and exit code. That
+			// line is preceded by an extra line break, which is dropped as well.
+			InputStream response = new BufferedInputStream(Channels.newInputStream(socket));
+			String marker = id + " ";
+			boolean pendingBreak = false;
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while((b = response.read()) != -1) {
+				if(b != '\n') {
+					line.write(b);
+					continue;
+				}
+				String text = line.toString("UTF-8");
+				if(text.startsWith(marker)) {
+					out.flush();
+					return Integer.parseInt(text.substring(marker.length()).trim());
+				}
+				if(pendingBreak) {
+					out.write('\n');
+				}
+				line.writeTo(out);
+				line.reset();
+				pendingBreak = true;
+			}
+			if(pendingBreak) {
+				out.write('\n');
+			}
+			line.writeTo(out);
+			out.flush();
+		} finally {
+			lastUsed = System.currentTimeMillis();
+			busy = false;
+		}
+		throw new IOException("Leiningen server exited before the task finished");
+	}
+
+	/**
+	 * A Clojure map literal of strings on a single line.
+	 */
+	static String map(Map<String,String> values) {
+		StringBuilder map = new StringBuilder("{");
+		for(Map.Entry<String,String> entry : values.entrySet()) {
+			map.append(map.length() == 1 ? "" : " ").append(DirectTest.string(entry.getKey())).append(' ')
+					.append(DirectTest.string(entry.getValue()));
+		}
+		return map.append('}').toString().replace("\r", "\\r").replace("\n", "\\n");
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1 && b != '\n') {
+			line.write(b);
+		}
+		return b == -1 && line.size() == 0 ? null : line.toString("UTF-8").trim();
+	}
+
+	static {
+		REAPER.scheduleWithFixedDelay(LeinServer::reapDaemons, 1, 1, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			synchronized(LeinServer.class) {
+				DAEMONS.values().forEach(LeinServer::stop);
+			}
+		}, "Leiningen daemon shutdown"));
+	}
+}
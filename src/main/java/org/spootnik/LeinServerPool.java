@@ -0,0 +1,165 @@
+package org.spootnik;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Idle Leiningen JVMs that already loaded Clojure and Leiningen, each waiting
+ * to run a single task.
+ *
+ * <p>
+ * Pools live in the agent JVM, one for each distinct JVM command line and
+ * <tt>LEIN_HOME</tt>. Every JVM taken from a pool is replaced in the
+ * background, so tasks that start together each find a warm JVM as long as
+ * the pool is large enough. A JVM never goes back to its pool, even when its
+ * task is cancelled. An agent keeps at most {@link #MAX_POOLS} pools, and
+ * stops the JVMs of a pool no task took from for {@link LeinServer#IDLE_MILLIS}.
+ */
+final class LeinServerPool {
+
+	private static final Logger LOGGER = Logger.getLogger(LeinServerPool.class.getName());
+
+	static final int MAX_POOLS = 4;
+
+	/**
+	 * Pools by JVM command line and <tt>LEIN_HOME</tt>, least recently used first.
+	 */
+	private static final LinkedHashMap<List<String>,LeinServerPool> POOLS = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final List<String> command;
+	private final String leinHome;
+	private final String script;
+	private volatile int size;
+	private final LinkedBlockingQueue<LeinServer> idle = new LinkedBlockingQueue<>();
+	private final AtomicInteger starting = new AtomicInteger();
+	private final ExecutorService starter;
+	private volatile long lastUsed = System.currentTimeMillis();
+	private volatile boolean closed;
+
+	private LeinServerPool(List<String> command, String leinHome, String script, int size) {
+		this.command = command;
+		this.leinHome = leinHome;
+		this.script = script;
+		this.size = size;
+		this.starter = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "Leiningen JVM pool starter");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * The pool for the JVM command line and <tt>LEIN_HOME</tt>, created and filled if needed.
+	 */
+	static synchronized LeinServerPool get(List<String> command, String leinHome, String script, int size) {
+		List<String> key = LeinServer.key(command, leinHome);
+		LeinServerPool pool = POOLS.get(key);
+		if(pool == null) {
+			pool = new LeinServerPool(new ArrayList<>(command), leinHome, script, size);
+			POOLS.put(key, pool);
+			Iterator<LeinServerPool> lru = POOLS.values().iterator();
+			while(POOLS.size() > MAX_POOLS) {
+				LeinServerPool evicted = lru.next();
+				lru.remove();
+				evicted.close();
+			}
+		}
+		pool.lastUsed = System.currentTimeMillis();
+		pool.size = size;
+		pool.fill();
+		return pool;
+	}
+
+	/**
+	 * Takes an idle JVM, or starts one if none is ready, and starts a replacement.
+	 */
+	LeinServer take() throws IOException {
+		LeinServer server;
+		while((server = idle.poll()) != null && !server.isAlive()) {
+			// an idle JVM that died, e.g. killed by the system
+		}
+		fill();
+		return server != null ? server : LeinServer.startOnce(command, leinHome, script);
+	}
+
+	/**
+	 * Starts JVMs in the background until the pool has its size.
+	 */
+	private synchronized void fill() {
+		while(!closed && idle.size() + starting.get() < size) {
+			starting.incrementAndGet();
+			starter.submit(() -> {
+				try {
+					LeinServer server = LeinServer.startOnce(command, leinHome, script);
+					idle.add(server);
+					if(closed && idle.remove(server)) {
+						server.stop();
+					}
+				} catch(IOException | RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Failed to start a Leiningen JVM for the pool", e);
+				} finally {
+					starting.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the idle JVMs of the pool and the JVMs it is starting.
+	 */
+	private synchronized void close() {
+		closed = true;
+		starter.shutdown();
+		LeinServer server;
+		while((server = idle.poll()) != null) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Closes the pool of the JVM command line and <tt>LEIN_HOME</tt>, if any.
+	 * JVMs already taken from it run their task to the end.
+	 */
+	static synchronized void close(List<String> command, String leinHome) {
+		LeinServerPool pool = POOLS.remove(LeinServer.key(command, leinHome));
+		if(pool != null) {
+			LOGGER.info("Stopping idle Leiningen JVM pool to free memory: " + command);
+			pool.close();
+		}
+	}
+
+	/**
+	 * Closes the pools no task took a JVM from for {@link LeinServer#IDLE_MILLIS}.
+	 */
+	private static synchronized void reapPools() {
+		long now = System.currentTimeMillis();
+		for(Iterator<LeinServerPool> i = POOLS.values().iterator(); i.hasNext();) {
+			LeinServerPool pool = i.next();
+			if(now - pool.lastUsed >= LeinServer.IDLE_MILLIS) {
+				LOGGER.info("Stopping idle Leiningen JVM pool: " + pool.command);
+				i.remove();
+				pool.close();
+			}
+		}
+	}
+
+	static {
+		LeinServer.REAPER.scheduleWithFixedDelay(LeinServerPool::reapPools, 1, 1, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			synchronized(LeinServerPool.class) {
+				POOLS.values().forEach(LeinServerPool::close);
+			}
+		}, "Leiningen JVM pool shutdown"));
+	}
+}
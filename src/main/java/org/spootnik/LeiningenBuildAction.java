@@ -0,0 +1,139 @@
+package org.spootnik;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Progress of the lein task graph of a build, shown on the build page.
+ *
+ * <p>
+ * The remaining time is estimated from the median durations of the tasks
+ * in past builds, as the longest chain of tasks that still has to run.
+ */
+public class LeiningenBuildAction implements Action {
+
+	private final Map<String,List<String>> taskDeps;
+	private final Map<String,Long> estimates;
+	private final Map<String,Long> started = new ConcurrentHashMap<>();
+	private final Map<String,Boolean> finished = new ConcurrentHashMap<>();
+	private volatile boolean ended;
+
+	/**
+	 * @param estimates
+	 *      Estimated duration in milliseconds of the tasks that ran before.
+	 */
+	LeiningenBuildAction(Map<String,List<String>> taskDeps, Map<String,Long> estimates) {
+		this.taskDeps = taskDeps;
+		this.estimates = estimates;
+	}
+
+	void started(String task) {
+		started.put(task, System.currentTimeMillis());
+	}
+
+	void finished(String task, boolean success) {
+		finished.put(task, success);
+	}
+
+	/**
+	 * Marks the graph as done: no task is running or will run any more, even
+	 * if some never ran because a task they depend on failed.
+	 */
+	void ended() {
+		ended = true;
+	}
+
+	public int getTaskCount() {
+		return taskDeps.size();
+	}
+
+	public int getFinishedCount() {
+		return finished.size();
+	}
+
+	/**
+	 * Whether every task reached a terminal state. After a failure, other tasks
+	 * may still be running, and in keep-going mode still be started.
+	 */
+	public boolean isComplete() {
+		return ended || finished.size() == taskDeps.size();
+	}
+
+	/**
+	 * @return the estimated time until all tasks are done in milliseconds, or -1 if unknown
+	 */
+	public long getEstimatedRemainingTime() {
+		if(estimates.isEmpty() || isComplete()) {
+			return -1;
+		}
+		long fallback = estimates.values().stream().mapToLong(Long::longValue).sum() / estimates.size();
+		long now = System.currentTimeMillis();
+
+		Map<String,Set<String>> dependents = new HashMap<>();
+		taskDeps.forEach((task, deps) -> deps.forEach(d -> dependents.computeIfAbsent(d, k -> new HashSet<>()).add(task)));
+
+		Map<String,Long> remaining = new HashMap<>();
+		long longest = 0;
+		for(String task : taskDeps.keySet()) {
+			longest = Math.max(longest, remaining(task, dependents, remaining, new HashSet<>(), fallback, now));
+		}
+		return longest;
+	}
+
+	private long remaining(String task, Map<String,Set<String>> dependents, Map<String,Long> remaining,
+			Set<String> visiting, long fallback, long now) {
+		Long known = remaining.get(task);
+		if(known != null) {
+			return known;
+		}
+		if(!visiting.add(task)) {
+			return 0;
+		}
+		long own;
+		if(finished.containsKey(task)) {
+			own = 0;
+		} else {
+			own = estimates.getOrDefault(task, fallback);
+			Long start = started.get(task);
+			if(start != null) {
+				own = Math.max(0, own - (now - start));
+			}
+		}
+		long longest = 0;
+		for(String dependent : dependents.getOrDefault(task, Collections.emptySet())) {
+			longest = Math.max(longest, remaining(dependent, dependents, remaining, visiting, fallback, now));
+		}
+		remaining.put(task, own + longest);
+		return own + longest;
+	}
+
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder("Leiningen tasks: ")
+				.append(getFinishedCount()).append(" of ").append(getTaskCount()).append(" done");
+		long remaining = getEstimatedRemainingTime();
+		if(remaining >= 0) {
+			summary.append(", about ").append(Util.getTimeSpanString(remaining)).append(" remaining");
+		}
+		return summary.toString();
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Leiningen";
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+}
@@ -5,6 +5,7 @@ import hudson.FilePath;
 import hudson.Extension;
 import hudson.Util;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
@@ -17,14 +18,21 @@ import hudson.model.Result;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.File;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -32,18 +40,28 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import jenkins.security.MasterToSlaveCallable;
 import jenkins.util.BuildListenerAdapter;
+import jenkins.util.Timer;
 
 
 /**
@@ -69,6 +87,26 @@ public class LeiningenBuilder extends Builder {
 	private String subdirPath;
 	private String jvmOpts;
 	private boolean parallel;
+	private int maxConcurrency;
+	private boolean keepGoing;
+	private ExecutionMode executionMode;
+	private JvmProfile jvmProfile;
+	private boolean autoHeap;
+	private boolean directTest;
+	private boolean trampoline;
+	private boolean nativeClean;
+	private boolean outputCache;
+	private boolean remoteCacheReadOnly;
+	private boolean skipUnchanged;
+	private String extraPaths;
+
+	/**
+	 * Compiled from {@link #task} once, when the builder is created or loaded.
+	 * Only one of the graph and the error is set.
+	 */
+	private transient TaskGraph graph;
+	private transient IllegalArgumentException graphError;
+	private transient List<String> taskArguments;
 
 	// Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
 	@DataBoundConstructor
@@ -77,166 +115,1324 @@ public class LeiningenBuilder extends Builder {
 		this.subdirPath = subdirPath;
 		this.jvmOpts = jvmOpts;
 		this.parallel = parallel;
+		compileTasks();
+	}
+
+	protected Object readResolve() {
+		compileTasks();
+		return this;
+	}
+
+	private void compileTasks() {
+		if(task == null) {
+			return;
+		}
+		taskArguments = TaskGraph.tokenize(task);
+		try {
+			graph = TaskGraph.compile(task);
+			for(int i = 0; i < graph.size(); i++) {
+				String profile = graph.attribute(i, "profile");
+				if(profile != null) {
+					JvmProfile.forName(profile);
+				}
+				getWeight(graph.name(i));
+				for(String paths : Arrays.asList(graph.attribute(i, "inputs"), graph.attribute(i, "outputs"))) {
+					if(paths != null) {
+						OutputCache.paths(paths);
+					}
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			graphError = e;
+		}
+	}
+
+	/**
+	 * The graph of tasks run in parallel mode.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if the tasks do not form a valid graph
+	 */
+	TaskGraph getTaskGraph() {
+		if(graphError != null) {
+			throw new IllegalArgumentException(graphError.getMessage(), graphError);
+		}
+		return graph;
+	}
+
+	/**
+	 * Arguments for leiningen of the whole task line or of a task of the graph.
+	 */
+	private List<String> getTaskArguments(String task) {
+		if(task.equals(this.task) && taskArguments != null) {
+			return taskArguments;
+		}
+		int index = graph != null ? graph.indexOf(task) : -1;
+		return index >= 0 ? graph.arguments(index) : TaskGraph.tokenize(task);
+	}
+
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+
+	/**
+	 * We'll use this from the <tt>config.jelly</tt>.
+	 */
+	public String getTask() {
+		return task;
+	}
+
+	public String getSubdirPath() {
+		return subdirPath;
+	}
+
+	public String getJvmOpts() {
+		return jvmOpts;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = Math.max(0, maxConcurrency);
+	}
+
+	public boolean isKeepGoing() {
+		return keepGoing;
+	}
+
+	/**
+	 * In parallel mode, keep running the tasks that do not depend on a failed
+	 * task instead of killing all running tasks on the first failure.
+	 */
+	@DataBoundSetter
+	public void setKeepGoing(boolean keepGoing) {
+		this.keepGoing = keepGoing;
+	}
+
+	public String getExecutionMode() {
+		return getMode().name();
+	}
+
+	ExecutionMode getMode() {
+		return executionMode != null ? executionMode : ExecutionMode.FORK;
+	}
+
+	@DataBoundSetter
+	public void setExecutionMode(String executionMode) {
+		this.executionMode = executionMode == null || executionMode.isEmpty()
+				? ExecutionMode.FORK : ExecutionMode.valueOf(executionMode);
+	}
+
+	public String getJvmProfile() {
+		return getProfile().name();
+	}
+
+	JvmProfile getProfile() {
+		return jvmProfile != null ? jvmProfile : JvmProfile.DEFAULT;
+	}
+
+	/**
+	 * JVM profile of the tasks that do not name one in a "profile" attribute.
+	 */
+	@DataBoundSetter
+	public void setJvmProfile(String jvmProfile) {
+		this.jvmProfile = jvmProfile == null || jvmProfile.isEmpty()
+				? JvmProfile.DEFAULT : JvmProfile.valueOf(jvmProfile);
+	}
+
+	/**
+	 * The JVM profile to run a task with: the one named in its attributes or
+	 * the job's, resolved from the recent durations of the task if automatic.
+	 */
+	JvmProfile getProfile(String task, TaskHistory history) {
+		JvmProfile profile = getProfile();
+		int index = graph != null && parallel ? graph.indexOf(task) : -1;
+		if(index >= 0 && graph.attribute(index, "profile") != null) {
+			profile = JvmProfile.forName(graph.attribute(index, "profile"));
+		}
+		return profile == JvmProfile.AUTO ? profile.resolve(history.medianDuration(task)) : profile;
+	}
+
+	public boolean isAutoHeap() {
+		return autoHeap;
+	}
+
+	/**
+	 * Size the heap of each lein JVM from the memory of the node, unless
+	 * the JVM options of the job give a maximum heap.
+	 */
+	@DataBoundSetter
+	public void setAutoHeap(boolean autoHeap) {
+		this.autoHeap = autoHeap;
+	}
+
+	public boolean isDirectTest() {
+		return directTest;
+	}
+
+	/**
+	 * Run plain <tt>lein test</tt> tasks directly on a classpath cached per node.
+	 */
+	@DataBoundSetter
+	public void setDirectTest(boolean directTest) {
+		this.directTest = directTest;
+	}
+
+	public boolean isTrampoline() {
+		return trampoline;
+	}
+
+	/**
+	 * Run <tt>run</tt> and <tt>test</tt> tasks from a cached trampoline command,
+	 * like <tt>LEIN_FAST_TRAMPOLINE</tt> does.
+	 */
+	@DataBoundSetter
+	public void setTrampoline(boolean trampoline) {
+		this.trampoline = trampoline;
+	}
+
+	public boolean isNativeClean() {
+		return nativeClean;
+	}
+
+	/**
+	 * Run <tt>clean</tt> tasks by deleting the clean targets read from
+	 * <tt>project.clj</tt>, without starting Leiningen.
+	 */
+	@DataBoundSetter
+	public void setNativeClean(boolean nativeClean) {
+		this.nativeClean = nativeClean;
+	}
+
+	public boolean isOutputCache() {
+		return outputCache;
+	}
+
+	/**
+	 * Restore the outputs of tasks whose inputs did not change from the cache
+	 * of the node, instead of running them.
+	 */
+	@DataBoundSetter
+	public void setOutputCache(boolean outputCache) {
+		this.outputCache = outputCache;
+	}
+
+	public boolean isRemoteCacheReadOnly() {
+		return remoteCacheReadOnly;
+	}
+
+	/**
+	 * Only restore outputs from the remote cache, without uploading any, as
+	 * for builds of pull requests.
+	 */
+	@DataBoundSetter
+	public void setRemoteCacheReadOnly(boolean remoteCacheReadOnly) {
+		this.remoteCacheReadOnly = remoteCacheReadOnly;
+	}
+
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Skip the whole step when git reports no change to the sub-directory and
+	 * the extra paths since the last successful build.
+	 */
+	@DataBoundSetter
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	public String getExtraPaths() {
+		return extraPaths;
+	}
+
+	/**
+	 * Paths of the repository, besides the sub-directory, whose changes make
+	 * the step run, one per line or separated by commas.
+	 */
+	@DataBoundSetter
+	public void setExtraPaths(String extraPaths) {
+		this.extraPaths = Util.fixEmptyAndTrim(extraPaths);
 	}
 
+	/**
+	 * Paths of the repository whose changes make the step run, or an empty
+	 * list for the whole repository.
+	 */
+	static List<String> getChangePaths(String subdirPath, String extraPaths) {
+		List<String> paths = new ArrayList<>();
+		if(subdirPath != null && !subdirPath.trim().isEmpty()) {
+			paths.add(subdirPath.trim());
+		}
+		if(extraPaths != null) {
+			for(String path : extraPaths.split("[,\n]")) {
+				if(!path.trim().isEmpty()) {
+					paths.add(path.trim());
+				}
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Share of the node memory a task gets relative to the other tasks, from
+	 * its "weight" attribute.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if the weight is not a positive number
+	 */
+	double getWeight(String task) {
+		int index = graph != null && parallel ? graph.indexOf(task) : -1;
+		String weight = index >= 0 ? graph.attribute(index, "weight") : null;
+		if(weight == null) {
+			return 1;
+		}
+		try {
+			double value = Double.parseDouble(weight);
+			if(value > 0 && !Double.isInfinite(value)) {
+				return value;
+			}
+		} catch(NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Weight of task \"" + task + "\" must be a positive number, not \"" + weight + "\"");
+	}
+
+	/**
+	 * Number of lein JVMs that may run at the same time in parallel mode:
+	 * the job setting, then the global default, then the number of processors
+	 * on the node running the build.
+	 */
+	int getEffectiveMaxConcurrency(Launcher launcher) throws IOException, InterruptedException {
+		if(maxConcurrency > 0) {
+			return maxConcurrency;
+		}
+		int global = getDescriptor().getMaxConcurrency();
+		if(global > 0) {
+			return global;
+		}
+		return launcher.getChannel().call(new AvailableProcessors());
+	}
+
+	
+	/**
+	 * Heap a lein JVM of this builder is expected to use, in megabytes.
+	 */
+	int getExpectedHeapMb() {
+		int heap = parseMaxHeapMb(jvmOpts);
+		return heap > 0 ? heap : DEFAULT_HEAP_MB;
+	}
+
+	private static final int DEFAULT_HEAP_MB = 1024;
+
+	/**
+	 * Part of the node memory shared by the heaps of lein JVMs. The rest is left
+	 * to their native memory, to the JVMs they fork and to the system.
+	 */
+	static final double HEAP_FRACTION = 0.5;
+
+	static final int MIN_HEAP_MB = 256;
+
+	/**
+	 * Heap of a task when sized automatically: its weighted share of the node
+	 * memory between the lein JVMs that may run at the same time.
+	 *
+	 * @param totalMemory
+	 *      Physical memory of the node, or the limit of its cgroup, in bytes.
+	 * @param slots
+	 *      Number of lein JVMs that may run at the same time.
+	 * @return the heap in megabytes, or -1 if it is not sized automatically
+	 */
+	int getHeapMb(String task, long totalMemory, int slots) {
+		if(!autoHeap || parseMaxHeapMb(jvmOpts) > 0 || totalMemory <= 0) {
+			return -1;
+		}
+		return autoHeapMb(totalMemory, slots, getWeight(task));
+	}
+
+	static int autoHeapMb(long totalMemory, int slots, double weight) {
+		double usableMb = totalMemory * HEAP_FRACTION / (1024 * 1024);
+		double heapMb = Math.min(usableMb, usableMb * weight / Math.max(1, slots));
+		return (int) Math.max(MIN_HEAP_MB, heapMb);
+	}
+
+	private static final Pattern XMX = Pattern.compile("(?:^|\\s)-Xmx(\\d+)([kKmMgGtT]?)(?=\\s|$)");
+
+	/**
+	 * Parses the last -Xmx option in the given JVM options, in megabytes.
+	 *
+	 * @return the heap size, or -1 if no -Xmx is given
+	 */
+	static int parseMaxHeapMb(String opts) {
+		if(opts == null) {
+			return -1;
+		}
+		long heap = -1;
+		Matcher m = XMX.matcher(opts);
+		while(m.find()) {
+			long value = Long.parseLong(m.group(1));
+			switch(m.group(2).toLowerCase()) {
+			case "t": heap = value * 1024 * 1024; break;
+			case "g": heap = value * 1024; break;
+			case "m": heap = value; break;
+			case "k": heap = value / 1024; break;
+			default: heap = value / (1024 * 1024);
+			}
+		}
+		return (int) Math.min(heap, Integer.MAX_VALUE);
+	}
+
+	Map<String,List<String>> parseLeinTasks(String tasks) {
+		return TaskGraph.parse(tasks);
+	}
+	
+	public boolean perform(final AbstractBuild build, final Launcher launcher, final BuildListener listener) {
+
+		try {
+			if(skipUnchanged && isUnchanged(build, launcher, listener)) {
+				return true;
+			}
+		} catch(InterruptedException e) {
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.ABORTED);
+			return false;
+		}
+
+		if(parallel) {
+			// Run lein tasks parallel in dependency order
+			final PrintStream log = listener.getLogger();
+
+			TaskGraph graph;
+			try {
+				// Reject bad graphs before any JVM is started
+				graph = getTaskGraph();
+			} catch(IllegalArgumentException e) {
+				listener.fatalError("invalid Leiningen task graph: " + e.getMessage());
+				build.setResult(Result.FAILURE);
+				return false;
+			}
+			TaskHistory history = TaskHistory.forJob(build.getParent().getRootDir());
+
+			// Show the progress and estimated remaining time on the build page
+			Map<String,Long> estimates = new HashMap<>();
+			graph.names().forEach(t -> {
+				long median = history.medianDuration(t);
+				if(median >= 0) {
+					estimates.put(t, median);
+				}
+			});
+			LeiningenBuildAction progress = new LeiningenBuildAction(graph.toMap(), estimates);
+			build.addAction(progress);
+
+			// Each finished task immediately starts the dependents it unblocks.
+			// Tasks that are ready while all workers are busy wait, critical path first.
+			ExecutorService executor = null;
+			boolean success;
+			try {
+				int workers = getEffectiveMaxConcurrency(launcher);
+				log.println("Running at most " + workers + " Leiningen tasks at a time");
+				executor = Executors.newFixedThreadPool(workers);
+				// Heaps are shared between the JVMs that can actually run together
+				int slots = Math.min(workers, graph.plan().stream().mapToInt(List::size).max().orElse(1));
+				// On the first failure, running tasks are killed through the id in their environment
+				Map<String,String> taskIds = new ConcurrentHashMap<>();
+				AtomicBoolean cancelled = new AtomicBoolean();
+				success = new TaskScheduler(graph, executor, workers, log)
+						.estimates(history::estimate)
+						.keepGoing(keepGoing)
+						.cancellation(tasks -> {
+							cancelled.set(true);
+							for(String t : tasks) {
+								String id = taskIds.get(t);
+								if(id != null) {
+									try {
+										launcher.kill(Collections.singletonMap(TASK_ID_VAR, id));
+										if(getMode() == ExecutionMode.DAEMON || getMode() == ExecutionMode.POOL) {
+											launcher.getChannel().call(new ServerTask.Stop(id));
+										}
+									} catch(IOException | InterruptedException e) {
+										log.println("Failed to kill Leiningen task " + t + ": " + e);
+									}
+								}
+							}
+						})
+						// A batch runs in a single JVM, so its tasks need the same profile
+						.batchGroup(t -> getProfile(t, history))
+						.batching(t -> isBatchable(launcher, graph, t), tasks -> {
+							String batchId = UUID.randomUUID().toString();
+							tasks.forEach(t -> {
+								taskIds.put(t, batchId);
+								progress.started(t);
+							});
+							List<Boolean> successes = performBatch(build, launcher, listener, tasks, batchId, slots, cancelled::get);
+							for(int i = 0; i < tasks.size(); i++) {
+								progress.finished(tasks.get(i), successes.get(i));
+							}
+							return successes;
+						})
+						.run(task -> {
+							String taskId = UUID.randomUUID().toString();
+							taskIds.put(task, taskId);
+							progress.started(task);
+							boolean taskSuccess = performTask(build, launcher, listener, task, taskId, slots, cancelled::get);
+							progress.finished(task, taskSuccess);
+							return taskSuccess;
+						}, memoryAdmission(launcher, history, slots, log));
+			} catch(IOException e) {
+				Util.displayIOException(e, listener);
+				e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+				build.setResult(Result.FAILURE);
+				return false;
+			} catch(InterruptedException ie) {
+				listener.error("Leiningen build interrupted");
+				build.setResult(Result.ABORTED);
+				return false;
+			} finally {
+				progress.ended();
+				if(executor != null) {
+					executor.shutdownNow();
+				}
+			}
+
+			listener.finished(success ? Result.SUCCESS : Result.FAILURE);
+			return success;
+		} else {
+			// If not configured as parallel, retain old behaviour
+			return performTask(build,launcher,listener, this.task);
+		}
+	}
+
+	/**
+	 * Admits a task only while the node has enough free memory for it: its median
+	 * peak RSS in recent builds, or its maximum heap if it did not run before. If no
+	 * other task of the build is running the task is started anyway, as waiting
+	 * for other workloads on the node to go away could take forever.
+	 */
+	private TaskScheduler.Admission memoryAdmission(final Launcher launcher, final TaskHistory history, final int slots,
+			final PrintStream log) {
+		return (task, running) -> {
+			MemoryProbe.Memory memory;
+			try {
+				memory = launcher.getChannel().call(new MemoryProbe());
+			} catch(IOException e) {
+				log.println("Could not read the memory of the node, starting " + task + ": " + e);
+				return true;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return true;
+			}
+			if(!memory.isKnown()) {
+				return true;
+			}
+
+			long peakRssKb = history.medianPeakRssKb(task);
+			int heapMb = getHeapMb(task, memory.total, slots);
+			long neededMb = peakRssKb > 0 ? peakRssKb / 1024 : heapMb > 0 ? heapMb : getExpectedHeapMb();
+			long availableMb = memory.available / (1024 * 1024);
+			if(neededMb <= availableMb) {
+				log.println("Admitting " + task + ": needs " + neededMb + " MB, " + availableMb + " MB available");
+				return true;
+			}
+			if(running == 0) {
+				log.println("Admitting " + task + " although it needs " + neededMb + " MB and only "
+						+ availableMb + " MB are available, as no other task is running");
+				return true;
+			}
+			log.println("Delaying " + task + ": needs " + neededMb + " MB, only " + availableMb + " MB available");
+			return false;
+		};
+	}
+
+	public boolean performTask(AbstractBuild build, Launcher launcher, BuildListener listener, String task) {
+		return performTask(build, launcher, listener, task, UUID.randomUUID().toString(), 1, () -> false);
+	}
+
+	/**
+	 * @param taskId
+	 *      Unique id put in the environment of the processes of the task.
+	 * @param slots
+	 *      Number of tasks of the build that may run at the same time.
+	 * @param cancelled
+	 *      Checked right before the JVM is launched, to not start tasks of a build that already failed.
+	 */
+	boolean performTask(AbstractBuild build, Launcher launcher, BuildListener listener, String task,
+			String taskId, int slots, BooleanSupplier cancelled) {
+		CachedOutputs cached = null;
+		if(outputCache && task != null && !task.trim().isEmpty()) {
+			try {
+				cached = getCachedOutputs(build, launcher, listener, task);
+				if(cached != null && cached.restore(launcher, listener)) {
+					return true;
+				}
+			} catch(IOException e) {
+				listener.getLogger().println("Not caching the outputs of " + task + ": " + e.getMessage());
+				cached = null;
+			} catch(InterruptedException e) {
+				e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+				build.setResult(Result.ABORTED);
+				return false;
+			}
+		}
+
+		boolean success = runTask(build, launcher, listener, task, taskId, slots, cancelled);
+		if(success && cached != null) {
+			try {
+				cached.store(launcher, listener, getDescriptor().getEffectiveOutputCacheBudget() * 1024L * 1024L);
+			} catch(IOException e) {
+				listener.getLogger().println("Could not cache the outputs of " + task + ": " + e.getMessage());
+			} catch(InterruptedException e) {
+				e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+				build.setResult(Result.ABORTED);
+				return false;
+			}
+		}
+		return success;
+	}
+
+	private boolean runTask(AbstractBuild build, Launcher launcher, BuildListener listener, String task,
+			String taskId, int slots, BooleanSupplier cancelled) {
+
+		String output;
+		EnvVars env = null;
+		FilePath workDir = getWorkDir(build);
+		int exitValue;
+		boolean success;
+
+		if (task == null || task.trim().equals("")) {
+			listener.fatalError("invalid task: " + task);
+			build.setResult(Result.ABORTED);
+			return false;
+		}
+
+		try {
+			List<String> arguments = getTaskArguments(task);
+			env = build.getEnvironment(listener);
+			// The processes of this task are recognised by this variable to sample their memory and kill them.
+			// Server JVMs pass it on to the JVMs they fork for the task.
+			env.put(TASK_ID_VAR, taskId);
+
+			if(nativeClean && arguments.equals(Collections.singletonList("clean"))
+					&& cleanNatively(build, launcher, env, workDir, task, listener)) {
+				return true;
+			}
+
+			if(getMode() == ExecutionMode.EMBEDDED) {
+				String node = build.getBuiltOnStr();
+				if(node == null || node.isEmpty()) {
+					// Leiningen would run inside the controller JVM
+					listener.fatalError("Leiningen tasks cannot run inside the JVM of the built-in node,"
+							+ " run the build on an agent or use another execution mode");
+					build.setResult(Result.FAILURE);
+					return false;
+				}
+				// Leiningen grows the heap of the agent as much as a lein JVM of the job would take
+				try(NodeMemoryBudget.Permit permit = getDescriptor().getMemoryBudget()
+						.acquire(node, getExpectedHeapMb(), listener.getLogger())) {
+					if(cancelled.getAsBoolean()) {
+						listener.getLogger().println("Not running " + task + ", the build already failed");
+						return false;
+					}
+					long start = System.currentTimeMillis();
+					exitValue = launcher.getChannel().call(new EmbeddedTask(getDescriptor().getJarPath(),
+							getServerScript(), workDir.getRemote(), env, arguments, listener));
+					recordRun(build, listener, task, System.currentTimeMillis() - start, exitValue, -1);
+					return (exitValue == 0);
+				}
+			}
+
+			if(getMode() == ExecutionMode.DAEMON || getMode() == ExecutionMode.POOL) {
+				int poolSize = getMode() == ExecutionMode.POOL ? getDescriptor().getEffectivePoolSize() : 0;
+				// Server JVMs are shared by all tasks, so only the job's profile applies
+				JvmProfile profile = getProfile().resolve(-1);
+				List<String> jvmCommand = getJvmCommand(build, profile, -1).toList();
+				NodeMemoryBudget budget = getDescriptor().getMemoryBudget();
+				int heapMb = getExpectedHeapMb();
+				// The daemon, or the idle JVMs of the pool, keep their memory between tasks until
+				// the agent stops them as idle. The pooled JVM running the task has a permit of its own,
+				// and idle ones never take so much of the budget that it could not get one.
+				int residentMb = poolSize > 0 ? Math.min(poolSize * heapMb, budget.getBudgetMb() - heapMb) : heapMb;
+				String leinHome = env.get("LEIN_HOME");
+				Runnable stopIdle = () -> {
+					try {
+						launcher.getChannel().call(new ServerTask.StopIdle(jvmCommand, leinHome, poolSize));
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				};
+				try(NodeMemoryBudget.Permit resident = budget.acquireResident(build.getBuiltOnStr(),
+						getMode() + " " + jvmCommand + " " + leinHome, residentMb,
+						LeinServer.IDLE_MILLIS, stopIdle, listener.getLogger());
+						NodeMemoryBudget.Permit running = poolSize > 0
+								? budget.acquire(build.getBuiltOnStr(), heapMb, listener.getLogger()) : null) {
+					if(cancelled.getAsBoolean()) {
+						listener.getLogger().println("Not running " + task + ", the build already failed");
+						return false;
+					}
+					long start = System.currentTimeMillis();
+					exitValue = launcher.getChannel().call(new ServerTask(jvmCommand, getServerScript(),
+							workDir.getRemote(), env, arguments, listener, poolSize, taskId));
+					recordRun(build, listener, task, System.currentTimeMillis() - start, exitValue, -1);
+					return (exitValue == 0);
+				}
+			}
+
+			JvmProfile profile = getProfile(task, TaskHistory.forJob(build.getParent().getRootDir()));
+			if(profile != JvmProfile.DEFAULT) {
+				listener.getLogger().println("Running " + task + " with the " + profile.name().toLowerCase(Locale.ENGLISH)
+						+ " JVM profile");
+			}
+
+			int heapMb = -1;
+			if(autoHeap) {
+				heapMb = getHeapMb(task, launcher.getChannel().call(new MemoryProbe()).total, slots);
+				if(heapMb > 0) {
+					listener.getLogger().println("Running " + task + " with a heap of " + heapMb + " MB");
+				}
+			}
+
+			ArgumentListBuilder leinCommand = null;
+			CdsArchive.Options cds = CdsArchive.NONE;
+			if(directTest && launcher.isUnix()) {
+				leinCommand = getDirectTestCommand(build, launcher, env, workDir, profile, heapMb, task, taskId,
+						arguments, listener, cancelled);
+			}
+			if(leinCommand == null && trampoline && launcher.isUnix()) {
+				leinCommand = getTrampolineCommand(build, launcher, env, workDir, profile, heapMb, task, taskId,
+						arguments, listener, cancelled);
+			}
+			if(leinCommand == null) {
+				// Share the parsed classes of the Leiningen jar between JVMs when enabled
+				if(getDescriptor().isClassDataSharing()) {
+					cds = launcher.getChannel().call(new CdsArchive.Prepare(getJavaExePath(build), getDescriptor().getJarPath()));
+				}
+				if(cds.lock != null) {
+					listener.getLogger().println("Generating the class data sharing archive of the Leiningen jar");
+				}
+				leinCommand = getLeinCommand(build, launcher, workDir, profile, heapMb, cds, arguments);
+			}
+			String[] cmdarray = leinCommand.toCommandArray();
+
+			Launched launched;
+			try {
+				launched = launch(build, launcher, env, workDir, cmdarray, taskId, heapMb, listener.getLogger(), null,
+						task, cancelled);
+			} finally {
+				if(cds.lock != null) {
+					launcher.getChannel().call(new CdsArchive.Release(cds.lock));
+				}
+			}
+			if(launched == null) {
+				return false;
+			}
+			recordRun(build, listener, task, launched.duration, launched.exitValue, launched.peakRssKb);
+			return (launched.exitValue == 0);
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.FAILURE);
+			return false;
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.FAILURE);
+			return false;
+		} catch (InterruptedException e) {
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.ABORTED);
+			return false;
+		}
+	}
+
+	/**
+	 * Exit code, duration and peak RSS of a lein JVM.
+	 */
+	private static final class Launched {
+		final int exitValue;
+		final long duration;
+		final long peakRssKb;
+
+		Launched(int exitValue, long duration, long peakRssKb) {
+			this.exitValue = exitValue;
+			this.duration = duration;
+			this.peakRssKb = peakRssKb;
+		}
+	}
+
+	/**
+	 * Runs a lein JVM once the node's Leiningen memory budget has room for it,
+	 * sampling the peak RSS of the processes with the task id in their environment.
+	 *
+	 * @param err
+	 *      Where the standard error of the JVM goes, or null to merge it with its output.
+	 * @return what the JVM did, or null if the build failed before it could start
+	 */
+	private Launched launch(AbstractBuild build, Launcher launcher, EnvVars env, FilePath workDir, String[] cmdarray,
+			String taskId, int heapMb, OutputStream out, OutputStream err, String what, BooleanSupplier cancelled)
+			throws IOException, InterruptedException {
+		OutputStream messages = err != null ? err : out;
+		PrintStream log = messages instanceof PrintStream ? (PrintStream) messages
+				: new PrintStream(messages, true, "UTF-8");
+		try(NodeMemoryBudget.Permit permit = getDescriptor().getMemoryBudget()
+				.acquire(build.getBuiltOnStr(), heapMb > 0 ? heapMb : getExpectedHeapMb(), log)) {
+			if(cancelled.getAsBoolean()) {
+				log.println("Not running " + what + ", the build already failed");
+				return null;
+			}
+			long start = System.currentTimeMillis();
+			AtomicLong peakRssKb = new AtomicLong(-1);
+			ScheduledFuture<?> sampler = Timer.get().scheduleWithFixedDelay(() -> {
+				try {
+					peakRssKb.accumulateAndGet(launcher.getChannel().call(new ProcessRss(TASK_ID_VAR, taskId)), Math::max);
+				} catch(IOException | InterruptedException e) {
+					// keep the peak sampled so far
+				}
+			}, 1, RSS_SAMPLE_SECONDS, TimeUnit.SECONDS);
+			try {
+				Launcher.ProcStarter starter = launcher.launch().cmds(cmdarray).envs(env).stdout(out).pwd(workDir);
+				if(err != null) {
+					starter.stderr(err);
+				}
+				int exitValue = starter.join();
+				return new Launched(exitValue, System.currentTimeMillis() - start, peakRssKb.get());
+			} finally {
+				sampler.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Whether a task of the graph may run in a batch with other cheap tasks.
+	 */
+	private boolean isBatchable(Launcher launcher, TaskGraph graph, String task) {
+		int index = graph.indexOf(task);
+		return getMode() == ExecutionMode.FORK && launcher.isUnix()
+				&& index >= 0 && "true".equals(graph.attribute(index, "cheap"))
+				&& !(outputCache && graph.attribute(index, "outputs") != null);
+	}
+
+	/**
+	 * Runs tasks one after the other in a single lein JVM, with the <tt>run-batch</tt>
+	 * function of <tt>lein-server.clj</tt>, which prints a marker line after each.
+	 * The tasks have the same JVM profile.
+	 *
+	 * @return whether each task succeeded, in order
+	 */
+	List<Boolean> performBatch(AbstractBuild build, Launcher launcher, BuildListener listener, List<String> tasks,
+			String batchId, int slots, BooleanSupplier cancelled) {
+		List<Boolean> successes = new ArrayList<>(Collections.nCopies(tasks.size(), false));
+		FilePath workDir = getWorkDir(build);
+		String what = String.join(", ", tasks);
+
+		try {
+			EnvVars env = build.getEnvironment(listener);
+			TaskHistory history = TaskHistory.forJob(build.getParent().getRootDir());
+			// Batches only hold tasks with the same profile
+			JvmProfile profile = getProfile(tasks.get(0), history);
+			int heapMb = -1;
+			if(autoHeap) {
+				long totalMemory = launcher.getChannel().call(new MemoryProbe()).total;
+				for(String task : tasks) {
+					heapMb = Math.max(heapMb, getHeapMb(task, totalMemory, slots));
+				}
+			}
+			CdsArchive.Options cds = getDescriptor().isClassDataSharing()
+					? launcher.getChannel().call(new CdsArchive.Prepare(getJavaExePath(build), getDescriptor().getJarPath()))
+					: CdsArchive.NONE;
+
+			List<List<String>> arguments = new ArrayList<>();
+			for(String task : tasks) {
+				arguments.add(getTaskArguments(task));
+			}
+			ArgumentListBuilder command = new ArgumentListBuilder();
+			command.add(CdsArchive.apply(getJvmCommand(build, profile, heapMb).toList(), cds));
+			command.add("-Dleiningen.original.pwd=" + workDir);
+			command.add("clojure.main", "-e", getServerScript(), "-e", "(leiningen-plugin.server/run-batch "
+					+ DirectTest.string(workDir.getRemote()) + " " + DirectTest.string(batchId) + " "
+					+ DirectTest.vectors(arguments) + " " + keepGoing + ")");
+
+			env.put(TASK_ID_VAR, batchId);
+			BatchOutput out = new BatchOutput(batchId, tasks, listener.getLogger());
+			Launched launched;
+			try {
+				launched = launch(build, launcher, env, workDir, command.toCommandArray(), batchId, heapMb, out, null,
+						what, cancelled);
+			} finally {
+				out.close();
+				if(cds.lock != null) {
+					launcher.getChannel().call(new CdsArchive.Release(cds.lock));
+				}
+			}
+			if(launched == null) {
+				return successes;
+			}
+			for(int i = 0; i < tasks.size(); i++) {
+				Integer exitValue = out.exitValue(i);
+				if(exitValue != null) {
+					recordRun(build, listener, tasks.get(i), out.duration(i), exitValue, launched.peakRssKb);
+					successes.set(i, exitValue == 0);
+				}
+			}
+			return successes;
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.FAILURE);
+			return successes;
+		} catch (IOException e) {
+			Util.displayIOException(e, listener);
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.FAILURE);
+			return successes;
+		} catch (InterruptedException e) {
+			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
+			build.setResult(Result.ABORTED);
+			return successes;
+		}
+	}
+
+	/**
+	 * Environment variable set to a unique id for the processes of each task.
+	 */
+	static final String TASK_ID_VAR = "LEININGEN_PLUGIN_TASK_ID";
+
+	private static final long RSS_SAMPLE_SECONDS = 2;
+
+	private void recordRun(AbstractBuild build, BuildListener listener, String task,
+			long duration, int exitValue, long peakRssKb) {
+		try {
+			TaskHistory.forJob(build.getParent().getRootDir()).record(task, duration, exitValue, peakRssKb);
+		} catch(IOException e) {
+			listener.getLogger().println("Failed to record the duration of " + task + ": " + e);
+		}
+	}
+
+	/**
+	 * The command running a plain <tt>lein test</tt> task directly on the classpath
+	 * of the project, describing the project with Leiningen first if the node has
+	 * no cached description for it. Descriptions hold absolute paths, so they are
+	 * cached per workspace.
+	 *
+	 * @return the command, or null if the task must run through Leiningen
+	 */
+	private ArgumentListBuilder getDirectTestCommand(AbstractBuild build, Launcher launcher, EnvVars env,
+			FilePath workDir, JvmProfile profile, int heapMb, String task, String taskId, List<String> arguments,
+			BuildListener listener, BooleanSupplier cancelled) throws IOException, InterruptedException {
+		List<String> profiles = DirectTest.profiles(arguments);
+		FilePath nodeRoot = build.getBuiltOn() != null ? build.getBuiltOn().getRootPath() : null;
+		if(profiles == null || nodeRoot == null || !workDir.child("project.clj").exists()) {
+			return null;
+		}
+		PrintStream log = listener.getLogger();
+
+		String key = launcher.getChannel().call(new ProjectChecksum(workDir.getRemote(), env.get("LEIN_HOME"),
+				profiles, getDescriptor().getJarPath()));
+		FilePath cached = nodeRoot.child(CLASSPATH_CACHE).child(key);
+		DirectTest.Description description;
+		if(cached.exists()) {
+			description = DirectTest.parse(cached.readToString());
+		} else {
+			log.println("Computing the test classpath of the project with Leiningen");
+			ArgumentListBuilder describe = getJvmCommand(build, profile, heapMb);
+			describe.add("-Dleiningen.original.pwd=" + workDir);
+			describe.add("clojure.main", "-e", DirectTest.script("lein-describe.clj"),
+					"-e", DirectTest.describeForm(workDir.getRemote(), profiles));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Launched launched = launch(build, launcher, env, workDir, describe.toCommandArray(), taskId, heapMb, out, log,
+					"the description of the project", cancelled);
+			if(launched == null) {
+				return null;
+			}
+			description = DirectTest.parse(out.toString("UTF-8"));
+			if(launched.exitValue != 0 || !description.isComplete()) {
+				log.println("Could not compute the test classpath, running " + task + " through Leiningen");
+				return null;
+			}
+			FilePath tmp = cached.getParent().child(key + ".tmp");
+			tmp.write(out.toString("UTF-8"), "UTF-8");
+			tmp.renameTo(cached);
+		}
+
+		if(description.unsupported != null) {
+			log.println("Running " + task + " through Leiningen: " + description.unsupported);
+			return null;
+		}
+		log.println("Running " + task + " directly on the cached classpath of the project");
+		// The JVM options of the job are for Leiningen, the project's :jvm-opts apply instead
+		ArgumentListBuilder args = new ArgumentListBuilder();
+		args.add(DirectTest.command(getJavaExePath(build), getTuningOptions(profile, heapMb), description,
+				DirectTest.namespaces(arguments)));
+		return args;
+	}
+
+	/**
+	 * Directory of the node root where test classpaths are cached.
+	 */
+	static final String CLASSPATH_CACHE = "leiningen-plugin/classpath";
+
+	/**
+	 * The outputs of a task and their key in the cache of the node.
+	 */
+	private static final class CachedOutputs {
+		final String task;
+		final FilePath cacheDir;
+		final FilePath workDir;
+		final String key;
+		final List<String> outputs;
+		final OutputCacheAction stats;
+		/**
+		 * URL of the remote cache, or null if there is none.
+		 */
+		final String remoteUrl;
+		final boolean remoteReadOnly;
+
+		CachedOutputs(String task, FilePath cacheDir, FilePath workDir, String key, List<String> outputs,
+				OutputCacheAction stats, String remoteUrl, boolean remoteReadOnly) {
+			this.task = task;
+			this.cacheDir = cacheDir;
+			this.workDir = workDir;
+			this.key = key;
+			this.outputs = outputs;
+			this.stats = stats;
+			this.remoteUrl = remoteUrl;
+			this.remoteReadOnly = remoteReadOnly;
+		}
+
+		/**
+		 * Restores the outputs from the cache of the node, downloading them
+		 * from the remote cache first if the node does not have them.
+		 *
+		 * @return whether the outputs were restored, so the task need not run
+		 */
+		boolean restore(Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+			String from = "the cache";
+			int files = launcher.getChannel().call(new OutputCache.Restore(cacheDir.getRemote(), workDir.getRemote(), key));
+			if(files < 0 && remoteUrl != null) {
+				try {
+					if(launcher.getChannel().call(new RemoteCache.Download(cacheDir.getRemote(), remoteUrl, key))) {
+						from = "the remote cache";
+						files = launcher.getChannel().call(new OutputCache.Restore(cacheDir.getRemote(),
+								workDir.getRemote(), key));
+					}
+				} catch(IOException e) {
+					listener.getLogger().println("Could not read the remote cache: " + e.getMessage());
+				}
+			}
+			if(files < 0) {
+				stats.miss();
+				return false;
+			}
+			stats.hit();
+			listener.getLogger().println("Restored " + files + " files of " + String.join(", ", outputs)
+					+ " from " + from + ", inputs of " + task + " did not change (" + key.substring(0, 12) + ")");
+			return true;
+		}
 
-	public boolean isParallel() {
-		return parallel;
+		/**
+		 * Stores the outputs, then evicts old entries in the background once the
+		 * cache takes more than the budget.
+		 */
+		void store(Launcher launcher, BuildListener listener, long budgetBytes) throws IOException, InterruptedException {
+			int files = launcher.getChannel().call(new OutputCache.Store(cacheDir.getRemote(), workDir.getRemote(),
+					key, outputs));
+			listener.getLogger().println("Cached " + files + " files of " + String.join(", ", outputs)
+					+ " for " + task + " (" + key.substring(0, 12) + ")");
+			if(remoteUrl != null && !remoteReadOnly) {
+				try {
+					int uploaded = launcher.getChannel().call(new RemoteCache.Upload(cacheDir.getRemote(), remoteUrl, key));
+					listener.getLogger().println("Uploaded " + task + " to the remote cache, " + uploaded
+							+ " files it did not have");
+				} catch(IOException e) {
+					listener.getLogger().println("Could not write to the remote cache: " + e.getMessage());
+				}
+			}
+			stats.evictInBackground(launcher.getChannel(), cacheDir.getRemote(), budgetBytes);
+		}
 	}
 
-
 	/**
-	 * We'll use this from the <tt>config.jelly</tt>.
+	 * The inputs and outputs of a task, from its "inputs" and "outputs"
+	 * attributes or else inferred from <tt>project.clj</tt>, and their key.
+	 *
+	 * @return the outputs, or null if the task cannot be cached
 	 */
-	public String getTask() {
-		return task;
-	}
+	private CachedOutputs getCachedOutputs(AbstractBuild build, Launcher launcher, BuildListener listener,
+			String task) throws IOException, InterruptedException {
+		FilePath nodeRoot = build.getBuiltOn() != null ? build.getBuiltOn().getRootPath() : null;
+		if(nodeRoot == null) {
+			return null;
+		}
+		FilePath workDir = getWorkDir(build);
+		List<String> arguments = getTaskArguments(task);
+		int index = graph != null && parallel ? graph.indexOf(task) : -1;
+		String inputsAttribute = index >= 0 ? graph.attribute(index, "inputs") : null;
+		String outputsAttribute = index >= 0 ? graph.attribute(index, "outputs") : null;
 
-	public String getSubdirPath() {
-		return subdirPath;
-	}
+		List<String> inputs;
+		List<String> outputs;
+		try {
+			FilePath projectFile = workDir.child("project.clj");
+			ProjectFile project = projectFile.exists() && (inputsAttribute == null || outputsAttribute == null)
+					? ProjectFile.parse(projectFile.readToString()) : null;
+			outputs = outputsAttribute != null ? OutputCache.paths(outputsAttribute)
+					: project != null ? OutputCache.inferOutputs(arguments, project) : null;
+			if(outputs == null) {
+				return null;
+			}
+			inputs = inputsAttribute != null ? OutputCache.paths(inputsAttribute)
+					: project != null ? OutputCache.inferInputs(project) : null;
+			if(inputs == null) {
+				throw new IllegalArgumentException("it has no inputs attribute and no project.clj");
+			}
+		} catch(IllegalArgumentException e) {
+			listener.getLogger().println("Not caching the outputs of " + task + ": " + e.getMessage());
+			return null;
+		}
 
-	public String getJvmOpts() {
-		return jvmOpts;
+		String commandLine = String.join(" ", arguments) + "\n" + jvmOpts + "\n" + outputs;
+		String key = launcher.getChannel().call(new OutputCache.Key(workDir.getRemote(), inputs, commandLine,
+				getJavaExePath(build), getDescriptor().getJarPath(), build.getEnvironment(listener).get("LEIN_HOME"),
+				nodeRoot.child(StatIndex.DIR).child(Util.getDigestOf(workDir.getRemote())).getRemote()));
+		return new CachedOutputs(task, nodeRoot.child(OutputCache.DIR), workDir, key, outputs,
+				OutputCacheAction.forNode(build.getBuiltOnStr()), getDescriptor().getRemoteCacheUrl(), remoteCacheReadOnly);
 	}
 
-	
-	Map<String,List<String>> parseLeinTasks(String tasks) {
-		HashMap<String,List<String>> taskDeps = new HashMap<>();
-		
-		Arrays.asList(tasks.split("\n")).stream().forEach( (task) -> {
-			String[] taskAndDeps = task.split(":");
-			if(taskAndDeps.length > 2) {
-				throw new IllegalArgumentException("Expected task line to be: \"task: deps\"");
-			}
-			List<String> deps = taskAndDeps.length < 2 
-					? Collections.emptyList()
-					: Arrays.asList(taskAndDeps[1].split(";"))
-						.stream().map(d -> d.trim()).collect(Collectors.toList());
-			taskDeps.put(taskAndDeps[0].trim(), deps);
-		});
-		
-		return taskDeps;
+	/**
+	 * The project directory in the workspace.
+	 */
+	private FilePath getWorkDir(AbstractBuild build) {
+		FilePath workDir = build.getModuleRoot();
+		if (subdirPath != null && subdirPath.length() > 0) {
+			workDir = new FilePath(workDir, subdirPath);
+		}
+		return workDir;
 	}
-	
-	enum Status { PENDING, RUNNING, COMPLETE, FAILED };
-	
-	public boolean perform(final AbstractBuild build, final Launcher launcher, final BuildListener listener) {
-
-		if(parallel) {
-			// Run lein tasks parallel in dependency order
-			final PrintStream log = listener.getLogger();
 
-			Map<String,List<String>> taskDeps = parseLeinTasks(this.task);
-			Set<String> tasks = new HashSet<>(taskDeps.keySet());
-			Map<String,Status> taskStatus = taskDeps.keySet().stream().collect(
-					Collectors.toMap(t -> t, t -> Status.PENDING));
-					
-			ExecutorService executor = Executors.newCachedThreadPool();
-
-			// Loop while there are tasks that are not complete yet and we haven't failed
-			while(taskStatus.values().stream().noneMatch(s -> s == Status.FAILED) &&
-					taskStatus.values().stream().anyMatch(s -> s != Status.COMPLETE)) {
-				
-				tasks.stream()
-					// Start tasks that are PENDING and whose deps are COMPLETE
-					.filter(t -> 
-						taskStatus.get(t) == Status.PENDING &&
-						taskDeps.get(t).stream().allMatch(d -> taskStatus.get(d) == Status.COMPLETE))
-					// Fork a new lein task for each task that will be started
-					.forEach(task -> {
-						log.println("Running Leiningen tasks: " + task);
-						taskStatus.put(task, Status.RUNNING);
-						executor.submit( () -> {
-							boolean success = performTask(build, launcher, listener, task);
-							taskStatus.put(task, success ? Status.COMPLETE : Status.FAILED);
-						});
-					});
-				
-				// Sleep a short while before trying again
-				try {
-					Thread.sleep(2500);
-				} catch(InterruptedException ie) { /* don't care */ }
+	/**
+	 * Whether git reports no change to the paths of the step between the
+	 * commit of the last successful build and the one being built, from the
+	 * variables of the Git plugin. Builds without both commits run.
+	 */
+	private boolean isUnchanged(AbstractBuild build, Launcher launcher, BuildListener listener)
+			throws InterruptedException {
+		PrintStream log = listener.getLogger();
+		try {
+			EnvVars env = build.getEnvironment(listener);
+			String previous = env.get("GIT_PREVIOUS_SUCCESSFUL_COMMIT");
+			List<String> paths = getChangePaths(subdirPath, extraPaths);
+			boolean unchanged = isUnchanged(previous, env.get("GIT_COMMIT"), paths, (command, out) ->
+					launcher.launch().cmds(command).envs(env).stdout(out).stderr(log).pwd(build.getModuleRoot()).join(),
+					log);
+			if(unchanged) {
+				build.addAction(new LeiningenSkipAction(paths.isEmpty() ? "the repository" : String.join(", ", paths),
+						previous));
 			}
-			
-			boolean success = taskStatus.values().stream().noneMatch(s -> s == Status.FAILED);
-			listener.finished(success ? Result.SUCCESS : Result.FAILURE);
-			return success;
-		} else {
-			// If not configured as parallel, retain old behaviour
-			return performTask(build,launcher,listener, this.task);
+			return unchanged;
+		} catch(IOException e) {
+			log.println("Not skipping the Leiningen step: " + e.getMessage());
+			return false;
 		}
 	}
 
-	public boolean performTask(AbstractBuild build, Launcher launcher, BuildListener listener, String task) {
+	/**
+	 * Runs a git command in the repository of the build.
+	 */
+	interface Git {
+		/**
+		 * @return the exit code of git
+		 */
+		int run(List<String> command, OutputStream out) throws IOException, InterruptedException;
+	}
 
-		String output;
-		EnvVars env = null;
-		FilePath workDir = build.getModuleRoot();
-		int exitValue;
-		boolean success;
+	/**
+	 * Whether <tt>git diff</tt> lists no changed file in the paths between two commits.
+	 *
+	 * @param previous
+	 *      Commit of the last successful build, or null if there is none.
+	 * @param commit
+	 *      Commit being built, or null if it is not known.
+	 * @param paths
+	 *      Paths to look for changes in, or an empty list for the whole repository.
+	 */
+	static boolean isUnchanged(String previous, String commit, List<String> paths, Git git, PrintStream log)
+			throws IOException, InterruptedException {
+		if(commit == null || previous == null) {
+			log.println("Not skipping the Leiningen step: no previous successful commit to compare with");
+			return false;
+		}
+		List<String> diff = new ArrayList<>(Arrays.asList("git", "diff", "--name-only", previous, commit, "--"));
+		diff.addAll(paths);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if(git.run(diff, out) != 0) {
+			log.println("Not skipping the Leiningen step: git diff failed");
+			return false;
+		}
+		String changes = out.toString("UTF-8").trim();
+		String where = paths.isEmpty() ? "the repository" : String.join(", ", paths);
+		if(!changes.isEmpty()) {
+			log.println("Running the Leiningen step: " + changes.split("\\r?\\n").length + " files changed in " + where
+					+ " since " + previous);
+			return false;
+		}
+		log.println("Leiningen step skipped: no changes in " + where + " since " + previous);
+		return true;
+	}
 
-		if (task == null || task.trim().equals("")) {
-			listener.fatalError("invalid task: " + task);
-			build.setResult(Result.ABORTED);
+	/**
+	 * Deletes the clean targets of the project without Leiningen, if they can
+	 * be read statically from <tt>project.clj</tt>.
+	 *
+	 * @return false if the task must run through Leiningen instead
+	 */
+	private boolean cleanNatively(AbstractBuild build, Launcher launcher, EnvVars env, FilePath workDir, String task,
+			BuildListener listener) throws IOException, InterruptedException {
+		FilePath project = workDir.child("project.clj");
+		if(!project.exists()) {
+			return false;
+		}
+		String profiles = launcher.getChannel().call(new NativeClean.ProfilesFile(workDir.getRemote(),
+				env.get("LEIN_HOME")));
+		if(profiles != null) {
+			listener.getLogger().println("Running " + task + " through Leiningen: " + profiles
+					+ " may set the clean targets");
 			return false;
 		}
+		List<String> targets;
+		try {
+			targets = NativeClean.targets(ProjectFile.parse(project.readToString()));
+		} catch(IllegalArgumentException e) {
+			listener.getLogger().println("Running " + task + " through Leiningen: " + e.getMessage());
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		launcher.getChannel().call(new NativeClean.Delete(workDir.getRemote(), targets));
+		listener.getLogger().println("Cleaned " + String.join(", ", targets) + " without Leiningen");
+		recordRun(build, listener, task, System.currentTimeMillis() - start, 0, -1);
+		return true;
+	}
 
-		if (subdirPath != null && subdirPath.length() > 0) {
-			workDir = new FilePath(workDir, subdirPath);
+	/**
+	 * Whether a task runs project code that <tt>lein trampoline</tt> can hand over
+	 * to the shell: <tt>run</tt> or <tt>test</tt>, possibly with profiles.
+	 */
+	static boolean isTrampolineTask(List<String> arguments) {
+		int first = arguments.size() > 2 && arguments.get(0).equals("with-profile") ? 2 : 0;
+		return arguments.size() > first
+				&& (arguments.get(first).equals("run") || arguments.get(first).equals("test"));
+	}
+
+	/**
+	 * Directory of the project where trampoline commands are cached, so that
+	 * cleaning the project also forgets them.
+	 */
+	static final String TRAMPOLINE_CACHE = "target/leiningen-plugin-trampolines";
+
+	/**
+	 * The command that <tt>lein trampoline</tt> would run for a task, read from the
+	 * cache of the workspace. On a miss, Leiningen runs with <tt>trampoline</tt> to
+	 * write the command to the cache, and commands cached for an older
+	 * <tt>project.clj</tt> are deleted.
+	 *
+	 * @return the command, or null if the task must run through Leiningen
+	 */
+	private ArgumentListBuilder getTrampolineCommand(AbstractBuild build, Launcher launcher, EnvVars env,
+			FilePath workDir, JvmProfile profile, int heapMb, String task, String taskId, List<String> arguments,
+			BuildListener listener, BooleanSupplier cancelled) throws IOException, InterruptedException {
+		FilePath project = workDir.child("project.clj");
+		if(!isTrampolineTask(arguments) || !project.exists()) {
+			return null;
 		}
+		PrintStream log = listener.getLogger();
 
-		try {
-			ArgumentListBuilder leinCommand = getLeinCommand(build, launcher, workDir, task);
-			String[] cmdarray = leinCommand.toCommandArray();
-			env = build.getEnvironment(listener);
+		String key = launcher.getChannel().call(new ProjectChecksum(workDir.getRemote(), env.get("LEIN_HOME"),
+				arguments, getDescriptor().getJarPath()));
+		FilePath cache = workDir.child(TRAMPOLINE_CACHE);
+		FilePath cached = cache.child(key);
+		if(!cached.exists()) {
+			if(cache.exists()) {
+				long changed = project.lastModified();
+				for(FilePath stale : cache.list()) {
+					if(stale.lastModified() < changed) {
+						stale.delete();
+					}
+				}
+			}
+			cache.mkdirs();
 
-			exitValue = launcher.launch().cmds(cmdarray).envs(env).stdout(listener).pwd(workDir).join();
+			log.println("Caching the trampoline command of " + task);
+			ArgumentListBuilder lein = getJvmCommand(build, profile, heapMb);
+			lein.add("-Dleiningen.original.pwd=" + workDir);
+			lein.add("-Dleiningen.trampoline-file=" + cached.getRemote());
+			lein.add("clojure.main", "-m", "leiningen.core.main", "trampoline");
+			lein.add(arguments);
+			Launched launched = launch(build, launcher, env, workDir, lein.toCommandArray(), taskId, heapMb, log, null,
+					"the trampoline command of " + task, cancelled);
+			if(launched == null) {
+				return null;
+			}
+			if(launched.exitValue != 0 || !cached.exists()) {
+				cached.delete();
+				log.println("Could not cache the trampoline command, running " + task + " through Leiningen");
+				return null;
+			}
+		}
 
-			return (exitValue == 0);
-		} catch (IllegalArgumentException e) {
-			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
-			build.setResult(Result.FAILURE);
-			return false;
-		} catch (IOException e) {
-			Util.displayIOException(e, listener);
-			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
-			build.setResult(Result.FAILURE);
-			return false;
-		} catch (InterruptedException e) {
-			e.printStackTrace(listener.fatalError("leiningen failed: " + e.getMessage()));
-			build.setResult(Result.ABORTED);
-			return false;
+		// Leiningen writes a shell command line, with its arguments quoted
+		String command = cached.readToString().trim();
+		if(command.isEmpty()) {
+			cached.delete();
+			return null;
 		}
+		log.println("Running " + task + " from its cached trampoline command");
+		return new ArgumentListBuilder("sh", "-c", "exec " + command);
 	}
 
-	private ArgumentListBuilder getLeinCommand(AbstractBuild build, Launcher launcher, FilePath workDir, String task)
+	private ArgumentListBuilder getLeinCommand(AbstractBuild build, Launcher launcher, FilePath workDir,
+			JvmProfile profile, int heapMb, CdsArchive.Options cds, List<String> taskArguments)
 			throws IllegalArgumentException, InterruptedException, IOException {
 
-		DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
 		ArgumentListBuilder args = new ArgumentListBuilder();
-		String jarPath = descriptor.getJarPath();
-
-		if (jarPath == null || jarPath.trim().equals("")) {
-			throw new IllegalArgumentException("leiningen jar path is empty");
-		}
 
 		if (!launcher.isUnix()) {
 			args.add("cmd.exe", "/C");
 		}
 
-		String javaExePath;
+		args.add(CdsArchive.apply(getJvmCommand(build, profile, heapMb).toList(), cds));
+		args.add("-Dleiningen.original.pwd=" + workDir);
+		args.add("clojure.main");
+		args.add("-m");
+		args.add("leiningen.core.main");
 
-		if (build.getProject().getJDK() != null) {
-			javaExePath = new File(build.getProject().getJDK().getBinDir()
-					+ "/java").getAbsolutePath();
-		} else {
-			javaExePath = "java";
+		args.add(taskArguments);
+		return args;
+	}
+
+	/**
+	 * The java executable and options to start a Leiningen JVM with, which
+	 * do not depend on the task or its directory. Options of the job come after
+	 * those of the profile, so they can override them.
+	 *
+	 * @param heapMb
+	 *      Maximum heap of the JVM, or -1 to leave it to the JVM options.
+	 */
+	private ArgumentListBuilder getJvmCommand(AbstractBuild build, JvmProfile profile, int heapMb)
+			throws IllegalArgumentException {
+
+		DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+		ArgumentListBuilder args = new ArgumentListBuilder();
+		String jarPath = descriptor.getJarPath();
+
+		if (jarPath == null || jarPath.trim().equals("")) {
+			throw new IllegalArgumentException("leiningen jar path is empty");
 		}
 
-		args.add(javaExePath);
-		args.add("-client");
-		args.add("-XX:+TieredCompilation");
+		args.add(getJavaExePath(build));
+		args.add(getTuningOptions(profile, heapMb));
 		args.add("-Xbootclasspath/a:" +  descriptor.getJarPath());
 
 		// TODO: handle also spaces within the options, like '-Dvalue="some string"'
@@ -249,23 +1445,51 @@ public class LeiningenBuilder extends Builder {
 		}
 		args.add("-Dfile.encoding=UTF-8");
 		args.add("-Dmaven.wagon.http.ssl.easy=false");
-		args.add("-Dleiningen.original.pwd=" + workDir);
 		args.add("-cp");
 		args.add(jarPath);
-		args.add("clojure.main");
-		args.add("-m");
-		args.add("leiningen.core.main");
+		return args;
+	}
 
-		Matcher matcher = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'").matcher(task);
-		while (matcher.find()) {
-			if (matcher.group(1) != null)
-				args.add(matcher.group(1));
-			else if (matcher.group(2) != null)
-				args.add(matcher.group(2));
-			else
-				args.add(matcher.group());
+	/**
+	 * The options of a JVM profile and of the heap computed for a task.
+	 *
+	 * @param heapMb
+	 *      Maximum heap of the JVM, or -1 to leave it to the JVM options.
+	 */
+	static List<String> getTuningOptions(JvmProfile profile, int heapMb) {
+		List<String> options = new ArrayList<>(profile.options());
+		if(heapMb > 0) {
+			// Start at a quarter of the maximum, so short tasks do not commit the whole heap
+			options.add("-Xmx" + heapMb + "m");
+			options.add("-Xms" + Math.max(MIN_HEAP_MB / 4, heapMb / 4) + "m");
 		}
-		return args;
+		return options;
+	}
+
+	private String getJavaExePath(AbstractBuild build) {
+		String javaExePath;
+
+		if (build.getProject().getJDK() != null) {
+			javaExePath = new File(build.getProject().getJDK().getBinDir()
+					+ "/java").getAbsolutePath();
+		} else {
+			javaExePath = "java";
+		}
+		return javaExePath;
+	}
+
+	private static String serverScript;
+
+	/**
+	 * Content of <tt>lein-server.clj</tt>, sent to the agents that start Leiningen servers.
+	 */
+	static synchronized String getServerScript() throws IOException {
+		if(serverScript == null) {
+			try(InputStream in = LeiningenBuilder.class.getResourceAsStream("lein-server.clj")) {
+				serverScript = IOUtils.toString(in, "UTF-8");
+			}
+		}
+		return serverScript;
 	}
 
 
@@ -297,6 +1521,44 @@ public class LeiningenBuilder extends Builder {
 		 */
 		private String jarPath;
 
+		/**
+		 * Default for {@link LeiningenBuilder#getMaxConcurrency()}, 0 means
+		 * the number of processors of the node.
+		 */
+		private int maxConcurrency;
+
+		/**
+		 * Memory in megabytes that the lein JVMs of all builds on a node
+		 * may use together, 0 means no limit.
+		 */
+		private int nodeMemoryBudget;
+
+		private transient volatile NodeMemoryBudget memoryBudget;
+
+		/**
+		 * Whether forked lein JVMs use a class data sharing archive of the Leiningen jar.
+		 */
+		private boolean classDataSharing;
+
+		/**
+		 * Number of idle Leiningen JVMs kept ready on each node in pool mode.
+		 */
+		private int poolSize;
+
+		static final int DEFAULT_POOL_SIZE = 2;
+
+		/**
+		 * Megabytes the task output cache may take on each node, 0 for the default.
+		 */
+		private int outputCacheBudget;
+
+		static final int DEFAULT_OUTPUT_CACHE_BUDGET = 10240;
+
+		/**
+		 * Base URL of the HTTP server sharing task outputs between nodes, or null for none.
+		 */
+		private String remoteCacheUrl;
+
 		/**
 		 *
 		 * Make sure configuration is read at startup
@@ -310,6 +1572,55 @@ public class LeiningenBuilder extends Builder {
 			return jarPath;
 		}
 
+		public int getMaxConcurrency() {
+			return maxConcurrency;
+		}
+
+		public boolean isClassDataSharing() {
+			return classDataSharing;
+		}
+
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		int getEffectivePoolSize() {
+			return poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE;
+		}
+
+		public String getRemoteCacheUrl() {
+			return remoteCacheUrl;
+		}
+
+		public int getOutputCacheBudget() {
+			return outputCacheBudget;
+		}
+
+		int getEffectiveOutputCacheBudget() {
+			return outputCacheBudget > 0 ? outputCacheBudget : DEFAULT_OUTPUT_CACHE_BUDGET;
+		}
+
+		public int getNodeMemoryBudget() {
+			return nodeMemoryBudget;
+		}
+
+		/**
+		 * Permits shared by every lein task on a node. Replaced when the budget
+		 * is reconfigured; tasks holding permits of the old budget still return them there.
+		 */
+		NodeMemoryBudget getMemoryBudget() {
+			NodeMemoryBudget budget = memoryBudget;
+			if(budget == null || budget.getBudgetMb() != nodeMemoryBudget) {
+				synchronized(this) {
+					budget = memoryBudget;
+					if(budget == null || budget.getBudgetMb() != nodeMemoryBudget) {
+						budget = memoryBudget = new NodeMemoryBudget(nodeMemoryBudget);
+					}
+				}
+			}
+			return budget;
+		}
+
 		/**
 		 * Performs on-the-fly validation of the form field 'name'.
 		 *
@@ -318,11 +1629,24 @@ public class LeiningenBuilder extends Builder {
 		 * @return
 		 *      Indicates the outcome of the validation. This is sent to the browser.
 		 */
-		public FormValidation doCheckTask(@QueryParameter String value)
+		public FormValidation doCheckTask(@QueryParameter String value, @QueryParameter boolean parallel)
 				throws IOException, ServletException {
 			if (value.length() == 0)
 				return FormValidation.error("Please provide a leiningen task command line");
-			return FormValidation.ok();
+			if (!parallel)
+				return FormValidation.ok();
+
+			// Preview the steps the tasks will run in
+			try {
+				List<List<String>> plan = TaskGraph.compile(value).plan();
+				StringBuilder preview = new StringBuilder("Plan:");
+				for (int i = 0; i < plan.size(); i++) {
+					preview.append(" ").append(i + 1).append(". ").append(String.join(", ", plan.get(i)));
+				}
+				return FormValidation.ok(preview.toString());
+			} catch (IllegalArgumentException e) {
+				return FormValidation.error(e.getMessage());
+			}
 		}
 
 		public FormValidation doCheckJarPath(@QueryParameter String value)
@@ -332,6 +1656,51 @@ public class LeiningenBuilder extends Builder {
 			return FormValidation.ok();
 		}
 
+		public FormValidation doCheckMaxConcurrency(@QueryParameter String value)
+				throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckPoolSize(@QueryParameter String value)
+				throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckRemoteCacheUrl(@QueryParameter String value)
+				throws IOException, ServletException {
+			if (value.trim().isEmpty())
+				return FormValidation.ok();
+			if (!value.trim().startsWith("http://") && !value.trim().startsWith("https://"))
+				return FormValidation.error("Please provide an http:// or https:// URL");
+			return FormValidation.ok();
+		}
+
+		public FormValidation doCheckOutputCacheBudget(@QueryParameter String value)
+				throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public FormValidation doCheckNodeMemoryBudget(@QueryParameter String value)
+				throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		public ListBoxModel doFillJvmProfileItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (JvmProfile profile : JvmProfile.values()) {
+				items.add(profile.getDisplayName(), profile.name());
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillExecutionModeItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (ExecutionMode mode : ExecutionMode.values()) {
+				items.add(mode.getDisplayName(), mode.name());
+			}
+			return items;
+		}
+
 		public boolean isApplicable(Class<? extends AbstractProject> aClass) {
 			// Indicates that this builder can be used with all kinds of project types
 			return true;
@@ -351,8 +1720,25 @@ public class LeiningenBuilder extends Builder {
 			// To persist global configuration information,
 			// set that to properties and call save().
 			jarPath = formData.getString("jarPath");
+			maxConcurrency = Math.max(0, formData.optInt("maxConcurrency", 0));
+			nodeMemoryBudget = Math.max(0, formData.optInt("nodeMemoryBudget", 0));
+			poolSize = Math.max(0, formData.optInt("poolSize", 0));
+			outputCacheBudget = Math.max(0, formData.optInt("outputCacheBudget", 0));
+			remoteCacheUrl = Util.fixEmptyAndTrim(formData.optString("remoteCacheUrl"));
+			classDataSharing = formData.optBoolean("classDataSharing");
 			save();
 			return super.configure(req,formData);
 		}
 	}
+
+	/**
+	 * Number of processors on the node the build runs on.
+	 */
+	private static final class AvailableProcessors extends MasterToSlaveCallable<Integer,RuntimeException> {
+		private static final long serialVersionUID = 1L;
+
+		public Integer call() {
+			return Runtime.getRuntime().availableProcessors();
+		}
+	}
 }
@@ -0,0 +1,34 @@
+package org.spootnik;
+
+import hudson.model.Action;
+
+/**
+ * Shown on the page of a build whose Leiningen step was skipped because
+ * nothing it builds changed since the last successful build.
+ */
+public class LeiningenSkipAction implements Action {
+
+	private final String paths;
+	private final String previousCommit;
+
+	LeiningenSkipAction(String paths, String previousCommit) {
+		this.paths = paths;
+		this.previousCommit = previousCommit;
+	}
+
+	public String getSummary() {
+		return "Leiningen step skipped: no changes in " + paths + " since " + previousCommit;
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Leiningen";
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+}
@@ -0,0 +1,139 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Reads the memory of the node it runs on, taking the limits of the
+ * cgroup (v1 or v2) of the agent process into account.
+ *
+ * <p>
+ * Only Linux is supported, other systems report unknown memory.
+ */
+class MemoryProbe extends MasterToSlaveCallable<MemoryProbe.Memory,IOException> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Total and available memory in bytes, -1 when unknown.
+	 */
+	static final class Memory implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final long total;
+		final long available;
+
+		Memory(long total, long available) {
+			this.total = total;
+			this.available = available;
+		}
+
+		boolean isKnown() {
+			return total > 0 && available >= 0;
+		}
+	}
+
+	static final Memory UNKNOWN = new Memory(-1, -1);
+
+	private static final File MEMINFO = new File("/proc/meminfo");
+	private static final File SELF_CGROUP = new File("/proc/self/cgroup");
+	private static final File CGROUP_ROOT = new File("/sys/fs/cgroup");
+
+	public Memory call() throws IOException {
+		if(!MEMINFO.canRead()) {
+			return UNKNOWN;
+		}
+		String meminfo = read(MEMINFO);
+		long total = meminfoValue(meminfo, "MemTotal");
+		long available = meminfoValue(meminfo, "MemAvailable");
+		if(available < 0) {
+			// Kernels before 3.14 do not report MemAvailable
+			available = meminfoValue(meminfo, "MemFree") + Math.max(0, meminfoValue(meminfo, "Cached"));
+		}
+
+		long[] cgroup = readCgroup();
+		if(cgroup != null && cgroup[0] > 0 && (total < 0 || cgroup[0] < total)) {
+			total = cgroup[0];
+			available = Math.min(available, Math.max(0, cgroup[0] - cgroup[1]));
+		}
+		return new Memory(total, available);
+	}
+
+	/**
+	 * @return limit and usage of the memory cgroup of this process, or null if there is no limit
+	 */
+	private static long[] readCgroup() throws IOException {
+		String cgroups = SELF_CGROUP.canRead() ? read(SELF_CGROUP) : "";
+
+		// cgroup v2: a single "0::/path" hierarchy
+		File v2 = cgroupDir(CGROUP_ROOT, cgroupPath(cgroups, "^0::(.*)$"), "memory.max");
+		if(v2 != null) {
+			long limit = parseLimit(read(new File(v2, "memory.max")));
+			long usage = parseLimit(read(new File(v2, "memory.current")));
+			return limit > 0 ? new long[] { limit, Math.max(0, usage) } : null;
+		}
+
+		// cgroup v1: the "memory" controller has its own hierarchy
+		File v1 = cgroupDir(new File(CGROUP_ROOT, "memory"),
+				cgroupPath(cgroups, "^\\d+:[^:]*\\bmemory\\b[^:]*:(.*)$"), "memory.limit_in_bytes");
+		if(v1 != null) {
+			long limit = parseLimit(read(new File(v1, "memory.limit_in_bytes")));
+			long usage = parseLimit(read(new File(v1, "memory.usage_in_bytes")));
+			// An unlimited v1 cgroup reports a huge page-aligned number
+			return limit > 0 && limit < Long.MAX_VALUE / 2 ? new long[] { limit, Math.max(0, usage) } : null;
+		}
+		return null;
+	}
+
+	/**
+	 * The directory of the cgroup, or the hierarchy root when the cgroup path is not
+	 * visible (as inside most containers).
+	 */
+	private static File cgroupDir(File root, String path, String file) {
+		if(path != null) {
+			File dir = new File(root, path);
+			if(new File(dir, file).canRead()) {
+				return dir;
+			}
+		}
+		return new File(root, file).canRead() ? root : null;
+	}
+
+	private static String cgroupPath(String cgroups, String regex) {
+		Matcher m = Pattern.compile(regex, Pattern.MULTILINE).matcher(cgroups);
+		return m.find() ? m.group(1).trim() : null;
+	}
+
+	/**
+	 * Value of a /proc/meminfo field in bytes, or -1 if it is missing.
+	 */
+	static long meminfoValue(String meminfo, String field) {
+		Matcher m = Pattern.compile("^" + field + ":\\s+(\\d+)\\s*kB", Pattern.MULTILINE).matcher(meminfo);
+		return m.find() ? Long.parseLong(m.group(1)) * 1024 : -1;
+	}
+
+	/**
+	 * Parses a cgroup memory file, "max" meaning no limit (-1).
+	 */
+	static long parseLimit(String value) {
+		value = value.trim();
+		if(value.isEmpty() || value.equals("max")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+	}
+}
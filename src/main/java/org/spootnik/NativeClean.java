@@ -0,0 +1,241 @@
+package org.spootnik;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.spootnik.ProjectFile.Keyword;
+
+/**
+ * <tt>lein clean</tt> without Leiningen: deletes the <tt>:clean-targets</tt>
+ * of a project, read statically from its <tt>project.clj</tt>.
+ *
+ * <p>
+ * Like Leiningen, keywords in <tt>:clean-targets</tt> name other keys of the
+ * project and a <tt>:target-path</tt> with a <tt>%s</tt> is cleaned up to
+ * the directory containing the profile directories. Like Leiningen, targets
+ * outside of <tt>:target-path</tt> and <tt>:compile-path</tt> are only deleted
+ * if <tt>:clean-targets</tt> has <tt>^{:protect false}</tt>; otherwise the
+ * task is left to Leiningen, which refuses to delete them. Projects whose targets
+ * can only be known by running Leiningen, because they are computed, come
+ * from a profile or may be changed by hooks, are left to Leiningen. So are
+ * projects with a <tt>profiles.clj</tt> of their own or of Leiningen, see
+ * {@link ProfilesFile}.
+ */
+final class NativeClean {
+
+	private NativeClean() {
+	}
+
+	/**
+	 * Keys that may hold a path, with their default in Leiningen.
+	 */
+	private static final Map<String,String> PATH_DEFAULTS = new HashMap<>();
+	static {
+		PATH_DEFAULTS.put("target-path", "target/%s");
+		PATH_DEFAULTS.put("compile-path", "%s/classes");
+	}
+
+	/**
+	 * Keys that let plugins or code change what <tt>lein clean</tt> does.
+	 */
+	private static final List<String> HOOK_KEYS = Arrays.asList("hooks", "middleware", "implicit-hooks");
+
+	/**
+	 * The paths to delete, relative to the project directory.
+	 *
+	 * @throws IllegalArgumentException
+	 *      with the reason to run <tt>lein clean</tt> instead
+	 */
+	static List<String> targets(ProjectFile project) {
+		for(String key : HOOK_KEYS) {
+			if(project.get(key) != null) {
+				throw new IllegalArgumentException("project.clj sets :" + key);
+			}
+		}
+		Object profiles = project.get("profiles");
+		if(profiles != null) {
+			if(!(profiles instanceof Map) || !ProjectFile.isStatic(profiles)) {
+				throw new IllegalArgumentException(":profiles is computed");
+			}
+			for(Object profile : ((Map<?,?>) profiles).values()) {
+				if(profile instanceof Map && (((Map<?,?>) profile).containsKey(new Keyword("clean-targets"))
+						|| ((Map<?,?>) profile).containsKey(new Keyword("target-path")))) {
+					throw new IllegalArgumentException("a profile sets :clean-targets or :target-path");
+				}
+			}
+		}
+
+		Object cleanTargets = project.has("clean-targets")
+				? project.get("clean-targets")
+				: Collections.singletonList(new Keyword("target-path"));
+		if(!(cleanTargets instanceof List) || !ProjectFile.isStatic(cleanTargets)) {
+			throw new IllegalArgumentException(":clean-targets is computed");
+		}
+
+		List<String> targets = new ArrayList<>();
+		for(Object target : (List<?>) cleanTargets) {
+			if(target instanceof String) {
+				targets.add(checked((String) target));
+			} else if(target instanceof Keyword) {
+				for(String path : paths(project, ((Keyword) target).name)) {
+					targets.add(checked(path));
+				}
+			} else {
+				throw new IllegalArgumentException(":clean-targets contains " + target);
+			}
+		}
+
+		if(!Boolean.FALSE.equals(project.meta(cleanTargets).get(new Keyword("protect")))) {
+			List<Path> unprotected = new ArrayList<>();
+			for(String key : Arrays.asList("target-path", "compile-path")) {
+				for(String path : paths(project, key)) {
+					unprotected.add(Paths.get(checked(path)));
+				}
+			}
+			for(String target : targets) {
+				if(unprotected.stream().noneMatch(Paths.get(target)::startsWith)) {
+					throw new IllegalArgumentException("clean target " + target
+							+ " is not under :target-path or :compile-path, and :clean-targets is protected");
+				}
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * The paths of a key, up to the directory of the profile directories if
+	 * they have a <tt>%s</tt>. Keys set to nil have none.
+	 */
+	private static List<String> paths(ProjectFile project, String key) {
+		Object value;
+		if(project.has(key)) {
+			value = project.get(key);
+		} else if(PATH_DEFAULTS.containsKey(key)) {
+			value = PATH_DEFAULTS.get(key);
+		} else {
+			throw new IllegalArgumentException(":clean-targets refers to :" + key + ", which is not set in project.clj");
+		}
+		List<?> values = value == null ? Collections.emptyList()
+				: value instanceof List ? (List<?>) value : Collections.singletonList(value);
+
+		List<String> paths = new ArrayList<>();
+		for(Object path : values) {
+			if(!(path instanceof String)) {
+				throw new IllegalArgumentException(":" + key + " is not a path");
+			}
+			String resolved = (String) path;
+			if(!key.equals("target-path") && resolved.contains("%s")) {
+				List<String> targetPaths = paths(project, "target-path");
+				if(targetPaths.size() != 1) {
+					throw new IllegalArgumentException(":" + key + " refers to :target-path, which is not a path");
+				}
+				resolved = resolved.replace("%s", targetPaths.get(0));
+			}
+			int profile = resolved.indexOf("%s");
+			paths.add(profile < 0 ? resolved : resolved.substring(0, profile));
+		}
+		return paths;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *      if the path is not inside the project directory
+	 */
+	private static String checked(String path) {
+		Path normalized = Paths.get(path).normalize();
+		if(normalized.isAbsolute() || normalized.toString().isEmpty() || normalized.startsWith("..")) {
+			throw new IllegalArgumentException("clean target " + path + " is not inside the project");
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * Finds a file of profiles Leiningen merges into the project, on the agent:
+	 * <tt>profiles.clj</tt> in the project directory, or <tt>profiles.clj</tt>
+	 * or <tt>profiles.d</tt> in <tt>LEIN_HOME</tt>. The default <tt>:user</tt>
+	 * profile they hold may set the targets.
+	 *
+	 * @return the path of the file, or null if there is none
+	 */
+	static final class ProfilesFile extends MasterToSlaveCallable<String,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final String leinHome;
+
+		/**
+		 * @param leinHome
+		 *      <tt>LEIN_HOME</tt> of the build, or null for <tt>~/.lein</tt>.
+		 */
+		ProfilesFile(String dir, String leinHome) {
+			this.dir = dir;
+			this.leinHome = leinHome;
+		}
+
+		public String call() {
+			File home = leinHome != null ? new File(leinHome) : new File(System.getProperty("user.home"), ".lein");
+			for(File file : Arrays.asList(new File(dir, "profiles.clj"), new File(home, "profiles.clj"))) {
+				if(file.isFile()) {
+					return file.getPath();
+				}
+			}
+			File[] profiles = new File(home, "profiles.d").listFiles((d, name) -> name.endsWith(".clj"));
+			return profiles != null && profiles.length > 0 ? profiles[0].getPath() : null;
+		}
+	}
+
+	/**
+	 * Deletes the targets of a project directory on the agent, the entries
+	 * of each target in parallel.
+	 */
+	static final class Delete extends MasterToSlaveCallable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final List<String> targets;
+
+		Delete(String dir, List<String> targets) {
+			this.dir = dir;
+			this.targets = targets;
+		}
+
+		public Void call() throws IOException {
+			List<File> entries = new ArrayList<>();
+			for(String target : targets) {
+				File file = new File(dir, target);
+				File[] children = file.listFiles();
+				if(children != null) {
+					entries.addAll(Arrays.asList(children));
+				}
+			}
+			try {
+				entries.parallelStream().forEach(entry -> {
+					try {
+						Util.deleteRecursive(entry);
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for(String target : targets) {
+				Util.deleteRecursive(new File(dir, target));
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package org.spootnik;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory budget for Leiningen JVMs, shared by all builds running on the same node.
+ *
+ * <p>
+ * Every node gets a pool of permits, one per megabyte of the budget. A task
+ * acquires as many permits as its expected heap before its JVM is launched
+ * and gives them back when the JVM exits, so the lein JVMs of all builds on
+ * a node never add up to more than the budget.
+ *
+ * <p>
+ * Server JVMs that stay up between tasks, such as daemons, hold their permits
+ * from their first task until they have been idle as long as the agent keeps
+ * them, or until a task of their node waits for memory while no task uses
+ * them, see {@link #acquireResident}.
+ */
+class NodeMemoryBudget {
+
+	private final int budgetMb;
+	private final ConcurrentMap<String,Semaphore> nodes = new ConcurrentHashMap<>();
+	private final Map<String,Resident> residents = new HashMap<>();
+
+	/**
+	 * Permits held for the server JVMs of a node with the same key.
+	 */
+	private static final class Resident {
+		final String node;
+		Permit permit;
+		boolean acquiring;
+		int users;
+		long lastUsed;
+		long idleMillis;
+		Runnable stop;
+
+		Resident(String node) {
+			this.node = node;
+		}
+	}
+
+	/**
+	 * @param budgetMb
+	 *      Memory available to lein JVMs on each node, 0 or less for no limit.
+	 */
+	NodeMemoryBudget(int budgetMb) {
+		this.budgetMb = budgetMb;
+	}
+
+	int getBudgetMb() {
+		return budgetMb;
+	}
+
+	/**
+	 * Blocks until the node has room for a JVM with the given heap.
+	 * A heap larger than the whole budget takes the whole budget.
+	 * While it waits, server JVMs of the node that no task is using are
+	 * stopped to give their memory back.
+	 */
+	Permit acquire(String node, int heapMb, PrintStream log) throws InterruptedException {
+		if(budgetMb <= 0) {
+			return new Permit(null);
+		}
+		// Fair, so that large tasks are not starved by a stream of small ones
+		Semaphore permits = nodes.computeIfAbsent(node, n -> new Semaphore(budgetMb, true));
+		int weight = Math.max(1, Math.min(heapMb, budgetMb));
+		releaseResidents(null, log);
+		// Unlike tryAcquire(int), a timed tryAcquire does not jump the queue
+		if(!permits.tryAcquire(weight, 0, TimeUnit.SECONDS)) {
+			log.println("Waiting for " + weight + " MB of the " + budgetMb
+					+ " MB Leiningen memory budget of this node");
+			releaseResidents(node, log);
+			while(!permits.tryAcquire(weight, 1, TimeUnit.SECONDS)) {
+				releaseResidents(node, log);
+			}
+		}
+		return new Permit(() -> permits.release(weight));
+	}
+
+	/**
+	 * Blocks until the node has room for the server JVMs with the given key,
+	 * unless they already hold their memory. The memory stays held while the
+	 * returned permit is open and for idleMillis after the last one is closed,
+	 * as the agent keeps the JVMs that long, unless a task waiting for memory
+	 * on the node stops them earlier.
+	 *
+	 * @param stop
+	 *      Stops the server JVMs on the node, if no task is using them.
+	 */
+	Permit acquireResident(String node, String key, int heapMb, long idleMillis, Runnable stop, PrintStream log)
+			throws InterruptedException {
+		if(budgetMb <= 0 || heapMb <= 0) {
+			return new Permit(null);
+		}
+		Resident resident;
+		synchronized(residents) {
+			resident = residents.computeIfAbsent(node + '\0' + key, k -> new Resident(node));
+			resident.users++;
+			resident.idleMillis = idleMillis;
+			resident.stop = stop;
+		}
+		Permit used = new Permit(() -> {
+			synchronized(residents) {
+				resident.users--;
+				resident.lastUsed = System.currentTimeMillis();
+			}
+		});
+		try {
+			synchronized(residents) {
+				// Another task is acquiring the memory of the same JVMs, waiting releases the lock
+				while(resident.acquiring) {
+					residents.wait();
+				}
+				if(resident.permit != null) {
+					return used;
+				}
+				resident.acquiring = true;
+			}
+			Permit permit = null;
+			try {
+				permit = acquire(node, heapMb, log);
+			} finally {
+				synchronized(residents) {
+					resident.permit = permit;
+					resident.acquiring = false;
+					residents.notifyAll();
+				}
+			}
+			return used;
+		} catch(InterruptedException | RuntimeException e) {
+			used.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases the permits of the server JVMs no task is using that have been
+	 * idle long enough for the agent to stop them, or that run on the given
+	 * node, which are stopped first.
+	 *
+	 * @param node
+	 *      Node where a task waits for memory, or null.
+	 */
+	private void releaseResidents(String node, PrintStream log) {
+		long now = System.currentTimeMillis();
+		List<Resident> released = new ArrayList<>();
+		synchronized(residents) {
+			for(Iterator<Resident> i = residents.values().iterator(); i.hasNext();) {
+				Resident resident = i.next();
+				if(resident.users == 0 && resident.permit == null && !resident.acquiring) {
+					// its task was interrupted before it got the memory
+					i.remove();
+				} else if(resident.users == 0 && resident.permit != null
+						&& (now - resident.lastUsed >= resident.idleMillis || resident.node.equals(node))) {
+					i.remove();
+					released.add(resident);
+				}
+			}
+		}
+		for(Resident resident : released) {
+			if(resident.node.equals(node)) {
+				log.println("Stopping idle Leiningen server JVMs to free their memory");
+				try {
+					resident.stop.run();
+				} catch(RuntimeException e) {
+					log.println("Failed to stop idle Leiningen server JVMs: " + e);
+				}
+			}
+			resident.permit.close();
+		}
+	}
+
+	static final class Permit implements AutoCloseable {
+		private final Runnable release;
+
+		private Permit(Runnable release) {
+			this.release = release;
+		}
+
+		@Override
+		public void close() {
+			if(release != null) {
+				release.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,537 @@
+package org.spootnik;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.spootnik.ProjectFile.Keyword;
+
+/**
+ * Content-addressed store of task outputs on a node, so that a task whose
+ * inputs did not change restores its outputs instead of running.
+ *
+ * <p>
+ * The key of a task is the SHA-256 of its input files, its command line, the
+ * JDK and the Leiningen jar. The store keeps each output file once, as a blob
+ * named after the SHA-256 of its content, and a manifest per key listing the
+ * output paths and the blob of each file:
+ *
+ * <pre>
+ * leiningen-plugin/cache/blobs/ab/ab12...
+ * leiningen-plugin/cache/manifests/cd34...
+ * </pre>
+ *
+ * Blobs and manifests are written to a temporary file first and moved in
+ * place, so builds running at the same time never see partial entries.
+ */
+final class OutputCache {
+
+	private OutputCache() {
+	}
+
+	/**
+	 * Directory of the store, relative to the root of the node.
+	 */
+	static final String DIR = "leiningen-plugin/cache";
+
+	private static final String OUTPUT = "output ";
+	private static final String FILE = "file ";
+
+	private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+	/**
+	 * Files from this size on are hashed through a memory mapping, in chunks.
+	 */
+	private static final long MAP_THRESHOLD = 1 << 20;
+	private static final long MAP_CHUNK = 64 << 20;
+
+	/**
+	 * Keys of <tt>project.clj</tt> holding the paths of source files, with their default.
+	 */
+	private static final Map<String,List<String>> SOURCE_PATHS = new TreeMap<>();
+	static {
+		SOURCE_PATHS.put("source-paths", Collections.singletonList("src"));
+		SOURCE_PATHS.put("java-source-paths", Collections.emptyList());
+		SOURCE_PATHS.put("resource-paths", Collections.singletonList("resources"));
+	}
+
+	/**
+	 * Input globs of a task that declares none: <tt>project.clj</tt>,
+	 * <tt>profiles.clj</tt> and the source and resource paths of the project
+	 * and of its profiles.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if the paths are computed, so the task cannot be cached
+	 */
+	static List<String> inferInputs(ProjectFile project) {
+		List<Map<?,?>> profiles = new ArrayList<>();
+		Object profileMap = project.get("profiles");
+		if(profileMap != null) {
+			if(!(profileMap instanceof Map) || !ProjectFile.isStatic(profileMap)) {
+				throw new IllegalArgumentException(":profiles is computed");
+			}
+			for(Object profile : ((Map<?,?>) profileMap).values()) {
+				if(profile instanceof Map) {
+					profiles.add((Map<?,?>) profile);
+				}
+			}
+		}
+
+		List<String> inputs = new ArrayList<>(Arrays.asList("project.clj", "profiles.clj"));
+		for(Map.Entry<String,List<String>> key : SOURCE_PATHS.entrySet()) {
+			List<Object> values = new ArrayList<>();
+			values.add(project.has(key.getKey()) ? project.get(key.getKey()) : key.getValue());
+			for(Map<?,?> profile : profiles) {
+				values.add(profile.get(new Keyword(key.getKey())));
+			}
+			for(Object value : values) {
+				if(value == null) {
+					continue;
+				}
+				if(!(value instanceof List)) {
+					throw new IllegalArgumentException(":" + key.getKey() + " is computed");
+				}
+				for(Object path : (List<?>) value) {
+					if(!(path instanceof String)) {
+						throw new IllegalArgumentException(":" + key.getKey() + " is computed");
+					}
+					inputs.add(checked((String) path) + "/**");
+				}
+			}
+		}
+		return inputs;
+	}
+
+	/**
+	 * Output paths of a task that declares none, known for <tt>lein uberjar</tt> only:
+	 * the target path of the <tt>uberjar</tt> profile.
+	 *
+	 * @return the paths, or null if they cannot be inferred
+	 */
+	static List<String> inferOutputs(List<String> arguments, ProjectFile project) {
+		if(!arguments.equals(Collections.singletonList("uberjar"))) {
+			return null;
+		}
+		Object profiles = project.get("profiles");
+		if(profiles != null && (!(profiles instanceof Map) || !ProjectFile.isStatic(profiles))) {
+			return null;
+		}
+		Object uberjar = profiles != null ? ((Map<?,?>) profiles).get(new Keyword("uberjar")) : null;
+		Object targetPath = uberjar instanceof Map && ((Map<?,?>) uberjar).containsKey(new Keyword("target-path"))
+				? ((Map<?,?>) uberjar).get(new Keyword("target-path"))
+				: project.has("target-path") ? project.get("target-path") : "target/%s";
+		if(!(targetPath instanceof String)) {
+			return null;
+		}
+		try {
+			return Collections.singletonList(checked(((String) targetPath).replace("%s", "uberjar")));
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Paths or globs given as a comma separated task attribute, as in
+	 * "outputs=target/uberjar,resources/public/js".
+	 *
+	 * @throws IllegalArgumentException
+	 *      if a path is not inside the project
+	 */
+	static List<String> paths(String attribute) {
+		List<String> paths = new ArrayList<>();
+		for(String path : attribute.split(",")) {
+			if(!path.trim().isEmpty()) {
+				paths.add(checked(path.trim()));
+			}
+		}
+		return paths;
+	}
+
+	private static String checked(String path) {
+		Path normalized = Paths.get(path).normalize();
+		if(normalized.isAbsolute() || normalized.toString().isEmpty() || normalized.startsWith("..")) {
+			throw new IllegalArgumentException("Cached path " + path + " is not inside the project");
+		}
+		return normalized.toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Computes the key of a task on the agent.
+	 */
+	static final class Key extends MasterToSlaveCallable<String,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final List<String> inputs;
+		private final String commandLine;
+		private final String java;
+		private final String jarPath;
+		private final String leinHome;
+		private final String statIndex;
+
+		/**
+		 * @param inputs
+		 *      Globs of the input files, relative to the project directory.
+		 * @param leinHome
+		 *      <tt>LEIN_HOME</tt> of the build, or null for <tt>~/.lein</tt>.
+		 * @param statIndex
+		 *      File of the {@link StatIndex} of the project directory.
+		 */
+		Key(String dir, List<String> inputs, String commandLine, String java, String jarPath, String leinHome,
+				String statIndex) {
+			this.dir = dir;
+			this.inputs = inputs;
+			this.commandLine = commandLine;
+			this.java = java;
+			this.jarPath = jarPath;
+			this.leinHome = leinHome;
+			this.statIndex = statIndex;
+		}
+
+		public String call() throws IOException {
+			MessageDigest key = sha256();
+			File jar = new File(jarPath);
+			File home = leinHome != null ? new File(leinHome) : new File(System.getProperty("user.home"), ".lein");
+			File userProfiles = new File(home, "profiles.clj");
+			for(String part : Arrays.asList(commandLine, String.valueOf(CdsArchive.javaVersion(java)),
+					jar.isFile() ? CdsArchive.jarChecksum(jar) : jarPath,
+					userProfiles.isFile() ? sha256(userProfiles) : "")) {
+				update(key, part);
+			}
+			Map<String,String> files = StatIndex.hashAll(new File(statIndex), new File(dir), matching(new File(dir), inputs));
+			for(Map.Entry<String,String> file : files.entrySet()) {
+				update(key, file.getKey());
+				update(key, file.getValue());
+			}
+			return hex(key.digest());
+		}
+	}
+
+	/**
+	 * Restores the outputs stored under a key on the agent, replacing the
+	 * outputs in the project.
+	 *
+	 * @return the number of files restored, or -1 if the store has no entry for the key
+	 */
+	static final class Restore extends MasterToSlaveCallable<Integer,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cacheDir;
+		private final String dir;
+		private final String key;
+
+		Restore(String cacheDir, String dir, String key) {
+			this.cacheDir = cacheDir;
+			this.dir = dir;
+			this.key = key;
+		}
+
+		public Integer call() throws IOException {
+			File manifest = manifest(new File(cacheDir), key);
+			if(!manifest.isFile()) {
+				return -1;
+			}
+			Manifest entry = Manifest.read(manifest);
+			List<String> outputs = entry.outputs;
+			Map<String,String> files = entry.files;
+			for(String hash : files.values()) {
+				if(!blob(new File(cacheDir), hash).isFile()) {
+					// an incomplete entry, run the task again
+					return -1;
+				}
+			}
+
+			for(String output : outputs) {
+				Util.deleteRecursive(new File(dir, output));
+			}
+			try {
+				files.entrySet().parallelStream().forEach(file -> {
+					Path target = new File(dir, file.getKey()).toPath();
+					try {
+						Files.createDirectories(target.getParent());
+						Files.copy(blob(new File(cacheDir), file.getValue()).toPath(), target,
+								StandardCopyOption.REPLACE_EXISTING);
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			manifest.setLastModified(System.currentTimeMillis());
+			CacheIndex.of(new File(cacheDir)).touched(key);
+			return files.size();
+		}
+	}
+
+	/**
+	 * Stores the outputs of a task under its key on the agent.
+	 *
+	 * @return the number of files stored
+	 */
+	static final class Store extends MasterToSlaveCallable<Integer,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cacheDir;
+		private final String dir;
+		private final String key;
+		private final List<String> outputs;
+
+		Store(String cacheDir, String dir, String key, List<String> outputs) {
+			this.cacheDir = cacheDir;
+			this.dir = dir;
+			this.key = key;
+			this.outputs = outputs;
+		}
+
+		public Integer call() throws IOException {
+			File cache = new File(cacheDir);
+			List<String> paths = new ArrayList<>();
+			for(String output : outputs) {
+				paths.addAll(files(new File(dir), output));
+			}
+			Map<String,String> files = hashAll(new File(dir), paths);
+			try {
+				paths.parallelStream().forEach(path -> {
+					File blob = blob(cache, files.get(path));
+					if(!blob.isFile()) {
+						try {
+							Files.createDirectories(blob.getParentFile().toPath());
+							Path temp = Files.createTempFile(blob.getParentFile().toPath(), blob.getName(), ".tmp");
+							Files.copy(new File(dir, path).toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+							move(temp, blob.toPath());
+						} catch(IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			StringBuilder content = new StringBuilder();
+			for(String output : outputs) {
+				content.append(OUTPUT).append(output).append('\n');
+			}
+			for(String path : paths) {
+				content.append(FILE).append(files.get(path)).append(' ').append(path).append('\n');
+			}
+			File manifest = manifest(cache, key);
+			Files.createDirectories(manifest.getParentFile().toPath());
+			Path temp = Files.createTempFile(manifest.getParentFile().toPath(), manifest.getName(), ".tmp");
+			Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+			move(temp, manifest.toPath());
+			CacheIndex.of(cache).added(key, files.values());
+			return paths.size();
+		}
+	}
+
+	/**
+	 * The output paths of a cache entry and the blob of each of their files, by path.
+	 */
+	static final class Manifest {
+		final List<String> outputs = new ArrayList<>();
+		final Map<String,String> files = new TreeMap<>();
+
+		/**
+		 * @throws IOException
+		 *      if the file cannot be read or is not a manifest, for instance
+		 *      with paths outside the project
+		 */
+		static Manifest read(File file) throws IOException {
+			Manifest manifest = new Manifest();
+			try {
+				for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+					if(line.startsWith(OUTPUT)) {
+						manifest.outputs.add(checked(line.substring(OUTPUT.length())));
+					} else if(line.startsWith(FILE)) {
+						String[] hashAndPath = line.substring(FILE.length()).split(" ", 2);
+						if(hashAndPath.length < 2 || !SHA256.matcher(hashAndPath[0]).matches()) {
+							throw new IllegalArgumentException("bad line: " + line);
+						}
+						manifest.files.put(checked(hashAndPath[1]), hashAndPath[0]);
+					} else if(!line.isEmpty()) {
+						throw new IllegalArgumentException("bad line: " + line);
+					}
+				}
+			} catch(IllegalArgumentException e) {
+				throw new IOException("Corrupt cache manifest " + file + ": " + e.getMessage(), e);
+			}
+			return manifest;
+		}
+	}
+
+	static File manifest(File cache, String key) {
+		return new File(cache, "manifests/" + key);
+	}
+
+	static File blob(File cache, String hash) {
+		return new File(cache, "blobs/" + hash.substring(0, 2) + "/" + hash);
+	}
+
+	static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Files of the project matching the globs, relative to the project
+	 * directory with "/" separators. A glob without wildcards matches the file
+	 * it names, or every file below the directory it names. Only the
+	 * directories below the part of each glob without wildcards are searched.
+	 */
+	static List<String> matching(File dir, List<String> globs) throws IOException {
+		List<String> files = new ArrayList<>();
+		for(String glob : globs) {
+			String base = glob;
+			int wildcard = indexOfWildcard(glob);
+			if(wildcard >= 0) {
+				int slash = glob.lastIndexOf('/', wildcard);
+				base = slash < 0 ? "" : glob.substring(0, slash);
+			}
+			File start = new File(dir, base);
+			if(wildcard < 0) {
+				// a plain file or directory
+				files.addAll(files(dir, glob));
+				continue;
+			}
+			if(!start.isDirectory()) {
+				continue;
+			}
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			Path root = dir.toPath();
+			try(Stream<Path> walk = Files.walk(start.toPath())) {
+				walk.filter(Files::isRegularFile)
+					.map(path -> relative(root, path))
+					.filter(path -> matcher.matches(Paths.get(path)))
+					.forEach(files::add);
+			}
+		}
+		return files;
+	}
+
+	private static int indexOfWildcard(String glob) {
+		for(int i = 0; i < glob.length(); i++) {
+			if("*?[{".indexOf(glob.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The files of an output path, a file or a directory, relative to the project directory.
+	 */
+	private static List<String> files(File dir, String output) throws IOException {
+		File file = new File(dir, output);
+		if(file.isFile()) {
+			return Collections.singletonList(output);
+		}
+		if(!file.isDirectory()) {
+			return Collections.emptyList();
+		}
+		Path root = dir.toPath();
+		try(Stream<Path> walk = Files.walk(file.toPath())) {
+			return walk.filter(Files::isRegularFile).map(path -> relative(root, path)).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static String relative(Path root, Path path) {
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * SHA-256 of each file of the project, by path relative to the project
+	 * directory, hashed in parallel.
+	 */
+	private static Map<String,String> hashAll(File dir, List<String> paths) throws IOException {
+		Map<String,String> hashes = Collections.synchronizedMap(new TreeMap<>());
+		try {
+			paths.parallelStream().distinct().forEach(path -> {
+				try {
+					hashes.put(path, sha256(new File(dir, path)));
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return hashes;
+	}
+
+	/**
+	 * SHA-256 of a file, read through a memory mapping if it is large. Files
+	 * are not mapped on Windows, where mapped files cannot be deleted until
+	 * the mapping is garbage collected.
+	 */
+	static String sha256(File file) throws IOException {
+		MessageDigest digest = sha256();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size >= MAP_THRESHOLD && File.separatorChar == '/') {
+				for(long position = 0; position < size; position += MAP_CHUNK) {
+					digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK, size - position)));
+				}
+			} else {
+				ByteBuffer buf = ByteBuffer.allocate(65536);
+				while(channel.read(buf) != -1) {
+					buf.flip();
+					digest.update(buf);
+					buf.clear();
+				}
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String part) {
+		digest.update(part.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,127 @@
+package org.spootnik;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.TransientComputerActionFactory;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Hits, misses and evictions of the task output cache of a node since
+ * Jenkins started, shown on the node page.
+ */
+public class OutputCacheAction implements Action {
+
+	private static final Logger LOGGER = Logger.getLogger(OutputCacheAction.class.getName());
+
+	private static final Map<String,OutputCacheAction> NODES = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+	private volatile CacheIndex.Stats stats;
+
+	/**
+	 * @param node
+	 *      Name of the node, "" for the master.
+	 */
+	static OutputCacheAction forNode(String node) {
+		return NODES.computeIfAbsent(node, n -> new OutputCacheAction());
+	}
+
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * Evicts the least recently used entries of the cache of the node once it
+	 * takes more than the budget, without waiting for it.
+	 */
+	void evictInBackground(VirtualChannel channel, String cacheDir, long budgetBytes) {
+		Timer.get().submit(() -> {
+			try {
+				evicted(channel.call(new CacheIndex.Evict(cacheDir, budgetBytes)));
+			} catch(IOException | InterruptedException e) {
+				LOGGER.log(Level.WARNING, "Could not evict entries of the output cache " + cacheDir, e);
+			}
+		});
+	}
+
+	void evicted(CacheIndex.Stats stats) {
+		evictions.addAndGet(stats.evictedEntries);
+		evictedBytes.addAndGet(stats.evictedBytes);
+		this.stats = stats;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public String getSummary() {
+		if(hits.get() == 0 && misses.get() == 0 && evictions.get() == 0 && stats == null) {
+			return "Leiningen output cache: no cache activity";
+		}
+		StringBuilder summary = new StringBuilder("Leiningen output cache: ")
+				.append(hits).append(" hits, ").append(misses).append(" misses, ")
+				.append(evictions).append(" evictions");
+		if(evictedBytes.get() > 0) {
+			summary.append(" (").append(megabytes(evictedBytes.get())).append(")");
+		}
+		CacheIndex.Stats last = stats;
+		if(last != null) {
+			summary.append("; ").append(last.entries).append(" entries taking ").append(megabytes(last.storedBytes))
+					.append(" for ").append(megabytes(last.logicalBytes)).append(" of outputs");
+		}
+		return summary.toString();
+	}
+
+	static String megabytes(long bytes) {
+		return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Leiningen output cache";
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+
+	@Extension
+	public static class Factory extends TransientComputerActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(Computer target) {
+			// Created on first sight, as the computer actions are cached before any task uses the cache.
+			return Collections.singletonList(forNode(target.getName()));
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Peak resident set size of the processes launched for one lein task.
+ *
+ * <p>
+ * The processes are recognised by an environment variable that is unique to
+ * the task, so the lein JVM and any JVM it forks for the project are counted.
+ * Only Linux is supported, elsewhere the peak RSS is unknown (-1).
+ */
+class ProcessRss extends MasterToSlaveCallable<Long,IOException> {
+	private static final long serialVersionUID = 1L;
+
+	private static final File PROC = new File("/proc");
+
+	private final String cookie;
+
+	/**
+	 * @param name
+	 *      Name of the environment variable identifying the processes.
+	 * @param value
+	 *      Its value.
+	 */
+	ProcessRss(String name, String value) {
+		this.cookie = name + "=" + value;
+	}
+
+	/**
+	 * @return the summed peak RSS in kilobytes, or -1 if no process was found
+	 */
+	public Long call() throws IOException {
+		File[] processes = PROC.listFiles((dir, name) -> name.chars().allMatch(Character::isDigit));
+		if(processes == null) {
+			return -1L;
+		}
+		long total = -1;
+		for(File process : processes) {
+			try {
+				if(!hasCookie(new File(process, "environ"))) {
+					continue;
+				}
+				long hwm = MemoryProbe.meminfoValue(
+						new String(Files.readAllBytes(new File(process, "status").toPath()), StandardCharsets.US_ASCII),
+						"VmHWM");
+				if(hwm > 0) {
+					total = Math.max(total, 0) + hwm / 1024;
+				}
+			} catch(IOException e) {
+				// the process exited or belongs to another user
+			}
+		}
+		return total;
+	}
+
+	private boolean hasCookie(File environ) throws IOException {
+		byte[] env = Files.readAllBytes(environ.toPath());
+		byte[] needle = cookie.getBytes(StandardCharsets.UTF_8);
+		int start = 0;
+		for(int i = 0; i <= env.length; i++) {
+			if(i == env.length || env[i] == 0) {
+				if(i - start == needle.length && regionMatches(env, start, needle)) {
+					return true;
+				}
+				start = i + 1;
+			}
+		}
+		return false;
+	}
+
+	private static boolean regionMatches(byte[] a, int offset, byte[] b) {
+		for(int i = 0; i < b.length; i++) {
+			if(a[offset + i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,52 @@
+package org.spootnik;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Checksum of what Leiningen reads to set up a project, computed on the agent:
+ * the directory of the project, <tt>project.clj</tt>, the <tt>profiles.clj</tt>
+ * files of the project and of Leiningen, the Leiningen jar and the given inputs,
+ * such as the profiles or arguments of a task. Like the one <tt>LEIN_FAST_TRAMPOLINE</tt> uses,
+ * it does not cover <tt>SNAPSHOT</tt> dependencies.
+ */
+final class ProjectChecksum extends MasterToSlaveCallable<String,IOException> {
+	private static final long serialVersionUID = 1L;
+
+	private final String dir;
+	private final String leinHome;
+	private final List<String> inputs;
+	private final String jarPath;
+
+	/**
+	 * @param leinHome
+	 *      <tt>LEIN_HOME</tt> of the build, or null for <tt>~/.lein</tt>.
+	 */
+	ProjectChecksum(String dir, String leinHome, List<String> inputs, String jarPath) {
+		this.dir = dir;
+		this.leinHome = leinHome;
+		this.inputs = inputs;
+		this.jarPath = jarPath;
+	}
+
+	public String call() throws IOException {
+		File home = leinHome != null ? new File(leinHome) : new File(System.getProperty("user.home"), ".lein");
+		// what Leiningen computes holds absolute paths into the directory
+		StringBuilder key = new StringBuilder(jarPath).append('\n').append(new File(dir).getAbsolutePath())
+				.append('\n').append(inputs).append('\n');
+		for(File file : Arrays.asList(new File(dir, "project.clj"), new File(dir, "profiles.clj"),
+				new File(home, "profiles.clj"))) {
+			key.append(file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : "")
+					.append('\0');
+		}
+		return Util.getDigestOf(key.toString());
+	}
+}
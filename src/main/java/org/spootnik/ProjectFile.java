@@ -0,0 +1,502 @@
+package org.spootnik;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The <tt>defproject</tt> form of a <tt>project.clj</tt>, read without
+ * evaluating anything.
+ *
+ * <p>
+ * Strings, numbers, booleans, nil, keywords, symbols, regular expressions and
+ * collections are read as data: vectors as {@link List}, lists as {@link Seq},
+ * maps as {@link Map} and sets as {@link java.util.Set}. Forms that Leiningen would evaluate,
+ * such as <tt>~(...)</tt>, syntax quotes, reader conditionals, anonymous
+ * functions and tagged literals, are read as {@link #DYNAMIC}, so callers can
+ * tell values they cannot know statically. The metadata of collections, such
+ * as <tt>^{:protect false}</tt>, is kept apart, see {@link #meta(Object)}.
+ */
+final class ProjectFile {
+
+	/**
+	 * A form whose value is only known by evaluating it.
+	 */
+	static final Object DYNAMIC = new Object() {
+		@Override
+		public String toString() {
+			return "<dynamic>";
+		}
+	};
+
+	static final class Keyword {
+		final String name;
+
+		Keyword(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Keyword && ((Keyword) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return ":" + name;
+		}
+	}
+
+	static final class Symbol {
+		final String name;
+
+		Symbol(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Symbol && ((Symbol) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * A list form, as opposed to a vector.
+	 */
+	static final class Seq {
+		final List<Object> items;
+
+		Seq(List<Object> items) {
+			this.items = Collections.unmodifiableList(items);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Seq && ((Seq) o).items.equals(items);
+		}
+
+		@Override
+		public int hashCode() {
+			return items.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return items.toString();
+		}
+	}
+
+	private final Map<Keyword,Object> entries;
+	private final Map<Object,Map<Object,Object>> metadata;
+
+	private ProjectFile(Map<Keyword,Object> entries, Map<Object,Map<Object,Object>> metadata) {
+		this.entries = entries;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Reads the <tt>defproject</tt> form of the source.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if the source cannot be read or has no <tt>defproject</tt>
+	 */
+	static ProjectFile parse(String source) {
+		Reader reader = new Reader(source);
+		Object form;
+		while((form = reader.next()) != Reader.EOF) {
+			if(form instanceof Seq) {
+				List<Object> items = ((Seq) form).items;
+				if(!items.isEmpty() && new Symbol("defproject").equals(items.get(0))) {
+					if(items.size() < 3 || items.size() % 2 == 0) {
+						throw new IllegalArgumentException("defproject needs a name, a version and pairs of keys and values");
+					}
+					Map<Keyword,Object> entries = new LinkedHashMap<>();
+					for(int i = 3; i < items.size(); i += 2) {
+						if(!(items.get(i) instanceof Keyword)) {
+							throw new IllegalArgumentException("defproject key " + items.get(i) + " is not a keyword");
+						}
+						entries.put((Keyword) items.get(i), items.get(i + 1));
+					}
+					return new ProjectFile(entries, reader.metadata);
+				}
+			}
+		}
+		throw new IllegalArgumentException("project.clj has no defproject");
+	}
+
+	/**
+	 * The value of a key, given without its colon, or null if the project does not set it.
+	 */
+	Object get(String key) {
+		return entries.get(new Keyword(key));
+	}
+
+	boolean has(String key) {
+		return entries.containsKey(new Keyword(key));
+	}
+
+	/**
+	 * The metadata of a collection read from the project, empty if it has none.
+	 * <tt>^:key</tt> reads as <tt>{:key true}</tt>, and a symbol or string as
+	 * <tt>{:tag ...}</tt>.
+	 */
+	Map<Object,Object> meta(Object value) {
+		Map<Object,Object> meta = value == null ? null : metadata.get(value);
+		return meta != null ? Collections.unmodifiableMap(meta) : Collections.emptyMap();
+	}
+
+	/**
+	 * Whether the value contains no {@link #DYNAMIC} form.
+	 */
+	static boolean isStatic(Object value) {
+		if(value == DYNAMIC) {
+			return false;
+		}
+		if(value instanceof Seq) {
+			return isStatic(((Seq) value).items);
+		}
+		if(value instanceof Map) {
+			return isStatic(((Map<?,?>) value).keySet()) && isStatic(((Map<?,?>) value).values());
+		}
+		if(value instanceof Collection) {
+			for(Object item : (Collection<?>) value) {
+				if(!isStatic(item)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads one form after the other from Clojure source.
+	 */
+	private static final class Reader {
+
+		static final Object EOF = new Object();
+
+		private static final Object END = new Object();
+
+		/**
+		 * Read for "#_" and the form it discards.
+		 */
+		private static final Object DISCARDED = new Object();
+
+		private static final Pattern LONG = Pattern.compile("[-+]?\\d+");
+		private static final Pattern DOUBLE = Pattern.compile("[-+]?\\d+(\\.\\d*)?([eE][-+]?\\d+)?");
+
+		private final String source;
+		private int pos;
+
+		/**
+		 * Metadata of the collections read, by identity.
+		 */
+		final Map<Object,Map<Object,Object>> metadata = new IdentityHashMap<>();
+
+		Reader(String source) {
+			this.source = source;
+		}
+
+		/**
+		 * The next form, or {@link #EOF}.
+		 */
+		Object next() {
+			Object form;
+			do {
+				form = read();
+			} while(form == DISCARDED);
+			if(form == END) {
+				throw error("unbalanced closing bracket");
+			}
+			return form;
+		}
+
+		private Object read() {
+			skipWhitespace();
+			if(pos >= source.length()) {
+				return EOF;
+			}
+			char c = source.charAt(pos++);
+			switch(c) {
+			case '(':
+				return new Seq(readUntil(')'));
+			case '[':
+				return readUntil(']');
+			case '{':
+				return toMap(readUntil('}'));
+			case ')': case ']': case '}':
+				return END;
+			case '"':
+				return readString();
+			case '\\':
+				return readCharacter();
+			case '\'':
+				return readForm();
+			case '^':
+				// Metadata does not change the value, it is kept apart
+				return withMeta(readForm(), readForm());
+			case '`':
+				readForm();
+				return DYNAMIC;
+			case '~':
+				if(pos < source.length() && source.charAt(pos) == '@') {
+					pos++;
+				}
+				readForm();
+				return DYNAMIC;
+			case '@':
+				readForm();
+				return DYNAMIC;
+			case '#':
+				return readDispatch();
+			default:
+				pos--;
+				return readToken();
+			}
+		}
+
+		/**
+		 * The next form, which must exist.
+		 */
+		private Object readForm() {
+			Object form;
+			do {
+				form = read();
+			} while(form == DISCARDED);
+			if(form == EOF || form == END) {
+				throw error("missing form");
+			}
+			return form;
+		}
+
+		private Object readDispatch() {
+			if(pos >= source.length()) {
+				throw error("end of file after #");
+			}
+			char c = source.charAt(pos++);
+			switch(c) {
+			case '{':
+				return new LinkedHashSet<>(readUntil('}'));
+			case '_':
+				readForm();
+				return DISCARDED;
+			case '"':
+				String regex = readString();
+				try {
+					return Pattern.compile(regex);
+				} catch(PatternSyntaxException e) {
+					return DYNAMIC;
+				}
+			case '(':
+				readUntil(')');
+				return DYNAMIC;
+			case '?':
+				if(pos < source.length() && source.charAt(pos) == '@') {
+					pos++;
+				}
+				readForm();
+				return DYNAMIC;
+			default:
+				// #=, #', tagged literals and namespaced maps
+				if(c != '=' && c != '\'') {
+					pos--;
+					readToken();
+				}
+				readForm();
+				return DYNAMIC;
+			}
+		}
+
+		private Object withMeta(Object meta, Object value) {
+			if(!(value instanceof Collection || value instanceof Map || value instanceof Seq)) {
+				return value;
+			}
+			Map<Object,Object> entries = new LinkedHashMap<>();
+			if(meta instanceof Map) {
+				entries.putAll((Map<?,?>) meta);
+			} else if(meta instanceof Keyword) {
+				entries.put(meta, Boolean.TRUE);
+			} else {
+				entries.put(new Keyword("tag"), meta);
+			}
+			// Inner metadata, as in ^:a ^:b [], is merged into
+			Map<Object,Object> inner = metadata.get(value);
+			if(inner != null) {
+				entries.forEach(inner::put);
+			} else {
+				metadata.put(value, entries);
+			}
+			return value;
+		}
+
+		private List<Object> readUntil(char close) {
+			List<Object> items = new ArrayList<>();
+			while(true) {
+				skipWhitespace();
+				if(pos >= source.length()) {
+					throw error("missing " + close);
+				}
+				if(source.charAt(pos) == close) {
+					pos++;
+					return items;
+				}
+				Object item = read();
+				if(item == END) {
+					throw error("mismatched closing bracket, expected " + close);
+				}
+				if(item != DISCARDED) {
+					items.add(item);
+				}
+			}
+		}
+
+		private Map<Object,Object> toMap(List<Object> items) {
+			if(items.size() % 2 != 0) {
+				throw error("map with an odd number of forms");
+			}
+			Map<Object,Object> map = new LinkedHashMap<>();
+			for(int i = 0; i < items.size(); i += 2) {
+				map.put(items.get(i), items.get(i + 1));
+			}
+			return map;
+		}
+
+		private String readString() {
+			StringBuilder value = new StringBuilder();
+			while(pos < source.length()) {
+				char c = source.charAt(pos++);
+				if(c == '"') {
+					return value.toString();
+				}
+				if(c == '\\' && pos < source.length()) {
+					char escaped = source.charAt(pos++);
+					switch(escaped) {
+					case 'n': value.append('\n'); break;
+					case 't': value.append('\t'); break;
+					case 'r': value.append('\r'); break;
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'u':
+						if(pos + 4 > source.length()) {
+							throw error("bad unicode escape");
+						}
+						value.append((char) Integer.parseInt(source.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default: value.append(escaped);
+					}
+				} else {
+					value.append(c);
+				}
+			}
+			throw error("unterminated string");
+		}
+
+		private Object readCharacter() {
+			int start = pos;
+			pos++;
+			while(pos < source.length() && !isDelimiter(source.charAt(pos))) {
+				pos++;
+			}
+			String name = source.substring(start, pos);
+			switch(name) {
+			case "newline": return '\n';
+			case "space": return ' ';
+			case "tab": return '\t';
+			default: return name.length() == 1 ? name.charAt(0) : DYNAMIC;
+			}
+		}
+
+		private Object readToken() {
+			int start = pos;
+			while(pos < source.length() && !isDelimiter(source.charAt(pos))) {
+				pos++;
+			}
+			String token = source.substring(start, pos);
+			if(token.isEmpty()) {
+				throw error("unexpected " + source.charAt(pos));
+			}
+			switch(token) {
+			case "nil": return null;
+			case "true": return Boolean.TRUE;
+			case "false": return Boolean.FALSE;
+			default:
+			}
+			if(token.startsWith(":")) {
+				return new Keyword(token.substring(token.startsWith("::") ? 2 : 1));
+			}
+			if(LONG.matcher(token).matches()) {
+				try {
+					return Long.parseLong(token);
+				} catch(NumberFormatException e) {
+					return DYNAMIC;
+				}
+			}
+			if(DOUBLE.matcher(token).matches()) {
+				return Double.parseDouble(token);
+			}
+			if(Character.isDigit(token.charAt(0))) {
+				// ratios, radix and big numbers
+				return DYNAMIC;
+			}
+			return new Symbol(token);
+		}
+
+		private static boolean isDelimiter(char c) {
+			return Character.isWhitespace(c) || c == ',' || "()[]{}\";".indexOf(c) >= 0;
+		}
+
+		private void skipWhitespace() {
+			while(pos < source.length()) {
+				char c = source.charAt(pos);
+				if(c == ';') {
+					while(pos < source.length() && source.charAt(pos) != '\n') {
+						pos++;
+					}
+				} else if(Character.isWhitespace(c) || c == ',') {
+					pos++;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			int line = 1;
+			for(int i = 0; i < Math.min(pos, source.length()); i++) {
+				if(source.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			return new IllegalArgumentException("Cannot read project.clj, line " + line + ": " + message);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toString(entries);
+	}
+}
@@ -0,0 +1,232 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Shares the {@link OutputCache} of nodes through an HTTP server that stores
+ * what is <tt>PUT</tt> to a path and serves it back with <tt>GET</tt>:
+ *
+ * <pre>
+ * cas/&lt;sha256&gt;  blobs, named after the SHA-256 of their content
+ * ac/&lt;key&gt;      manifests, named after the key of a task
+ * </pre>
+ *
+ * Any WebDAV server, or an HTTP cache server for Bazel or Gradle, can act as
+ * the backend. Files are streamed to and from the local store of the node,
+ * blobs are checked against their name as they are downloaded, and a
+ * manifest is uploaded after its blobs, so nodes never download a manifest
+ * whose blobs are missing.
+ */
+final class RemoteCache {
+
+	private RemoteCache() {
+	}
+
+	private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+	private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * Downloads the entry of a key to the store of the node, on the agent.
+	 *
+	 * @return whether the remote cache has the entry
+	 */
+	static final class Download extends MasterToSlaveCallable<Boolean,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cacheDir;
+		private final String url;
+		private final String key;
+
+		Download(String cacheDir, String url, String key) {
+			this.cacheDir = cacheDir;
+			this.url = url;
+			this.key = key;
+		}
+
+		public Boolean call() throws IOException {
+			File cache = new File(cacheDir);
+			File manifest = OutputCache.manifest(cache, key);
+			Files.createDirectories(manifest.getParentFile().toPath());
+			Path temp = Files.createTempFile(manifest.getParentFile().toPath(), key, ".tmp");
+			try {
+				if(!get(url(url, "ac/" + key), temp, null)) {
+					return false;
+				}
+				OutputCache.Manifest entry = OutputCache.Manifest.read(temp.toFile());
+				try {
+					new TreeSet<>(entry.files.values()).parallelStream().forEach(hash -> {
+						File blob = OutputCache.blob(cache, hash);
+						if(blob.isFile()) {
+							return;
+						}
+						try {
+							Files.createDirectories(blob.getParentFile().toPath());
+							Path blobTemp = Files.createTempFile(blob.getParentFile().toPath(), hash, ".tmp");
+							try {
+								if(!get(url(url, "cas/" + hash), blobTemp, hash)) {
+									throw new FileNotFoundException("Remote cache entry " + key + " refers to blob "
+											+ hash + ", which it does not have");
+								}
+								OutputCache.move(blobTemp, blob.toPath());
+							} finally {
+								Files.deleteIfExists(blobTemp);
+							}
+						} catch(IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				} catch(UncheckedIOException e) {
+					throw e.getCause();
+				}
+				OutputCache.move(temp, manifest.toPath());
+				CacheIndex.of(cache).added(key, entry.files.values());
+				return true;
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Uploads the entry of a key from the store of the node, on the agent.
+	 *
+	 * @return the number of blobs the remote cache did not have yet
+	 */
+	static final class Upload extends MasterToSlaveCallable<Integer,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String cacheDir;
+		private final String url;
+		private final String key;
+
+		Upload(String cacheDir, String url, String key) {
+			this.cacheDir = cacheDir;
+			this.url = url;
+			this.key = key;
+		}
+
+		public Integer call() throws IOException {
+			File cache = new File(cacheDir);
+			File manifest = OutputCache.manifest(cache, key);
+			if(!manifest.isFile()) {
+				return 0;
+			}
+			Set<String> hashes = new TreeSet<>(OutputCache.Manifest.read(manifest).files.values());
+			AtomicInteger uploaded = new AtomicInteger();
+			try {
+				hashes.parallelStream().forEach(hash -> {
+					try {
+						URL blob = url(url, "cas/" + hash);
+						if(!exists(blob)) {
+							put(blob, OutputCache.blob(cache, hash));
+							uploaded.incrementAndGet();
+						}
+					} catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+			put(url(url, "ac/" + key), manifest);
+			return uploaded.get();
+		}
+	}
+
+	static URL url(String base, String path) throws IOException {
+		return new URL(base.endsWith("/") ? base + path : base + "/" + path);
+	}
+
+	private static HttpURLConnection open(URL url, String method) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+		return connection;
+	}
+
+	private static IOException error(HttpURLConnection connection, String method, URL url) throws IOException {
+		return new IOException(method + " " + url + " failed: HTTP " + connection.getResponseCode()
+				+ " " + connection.getResponseMessage());
+	}
+
+	/**
+	 * Streams a file to the target, checking that its SHA-256 is the expected one if given.
+	 *
+	 * @return false if the server does not have the file
+	 */
+	private static boolean get(URL url, Path target, String sha256) throws IOException {
+		HttpURLConnection connection = open(url, "GET");
+		try {
+			int code = connection.getResponseCode();
+			if(code == HttpURLConnection.HTTP_NOT_FOUND) {
+				return false;
+			}
+			if(code != HttpURLConnection.HTTP_OK) {
+				throw error(connection, "GET", url);
+			}
+			MessageDigest digest = OutputCache.sha256();
+			byte[] buf = new byte[65536];
+			try(InputStream in = connection.getInputStream(); OutputStream out = Files.newOutputStream(target)) {
+				int n;
+				while((n = in.read(buf)) != -1) {
+					digest.update(buf, 0, n);
+					out.write(buf, 0, n);
+				}
+			}
+			if(sha256 != null && !sha256.equals(OutputCache.hex(digest.digest()))) {
+				throw new IOException("GET " + url + " returned content that does not match its checksum");
+			}
+			return true;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Whether the server has a file. Servers that do not answer <tt>HEAD</tt>
+	 * requests with 200 or 404 get the file uploaded again.
+	 */
+	private static boolean exists(URL url) throws IOException {
+		HttpURLConnection connection = open(url, "HEAD");
+		try {
+			return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static void put(URL url, File file) throws IOException {
+		HttpURLConnection connection = open(url, "PUT");
+		try {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/octet-stream");
+			connection.setFixedLengthStreamingMode(file.length());
+			try(OutputStream out = connection.getOutputStream()) {
+				Files.copy(file.toPath(), out);
+			}
+			int code = connection.getResponseCode();
+			if(code < 200 || code >= 300) {
+				throw error(connection, "PUT", url);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
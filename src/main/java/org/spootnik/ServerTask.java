@@ -0,0 +1,134 @@
+package org.spootnik;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Runs a task on a {@link LeinServer} of the agent, streaming its output to the build log.
+ * The server is either the warm daemon, or an idle JVM from a {@link LeinServerPool}.
+ */
+class ServerTask extends MasterToSlaveCallable<Integer,IOException> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Server running each task, by task id, so that cancelled tasks can be stopped.
+	 */
+	private static final Map<String,LeinServer> RUNNING = new ConcurrentHashMap<>();
+
+	private final List<String> jvmCommand;
+	private final String script;
+	private final String dir;
+	private final Map<String,String> env;
+	private final List<String> args;
+	private final TaskListener listener;
+	private final int poolSize;
+	private final String taskId;
+
+	/**
+	 * @param jvmCommand
+	 *      Java executable and options the server is started with.
+	 * @param script
+	 *      Content of <tt>lein-server.clj</tt>.
+	 * @param env
+	 *      Environment of the build.
+	 * @param poolSize
+	 *      Number of idle JVMs to keep ready, or 0 to use the daemon.
+	 */
+	ServerTask(List<String> jvmCommand, String script, String dir, Map<String,String> env, List<String> args,
+			TaskListener listener, int poolSize, String taskId) {
+		this.jvmCommand = jvmCommand;
+		this.script = script;
+		this.dir = dir;
+		this.env = env;
+		this.args = args;
+		this.listener = listener;
+		this.poolSize = poolSize;
+		this.taskId = taskId;
+	}
+
+	public Integer call() throws IOException {
+		String leinHome = env.get("LEIN_HOME");
+		if(poolSize > 0) {
+			LeinServer server = LeinServerPool.get(jvmCommand, leinHome, script, poolSize).take();
+			RUNNING.put(taskId, server);
+			try {
+				return server.run(dir, env, args, listener.getLogger());
+			} finally {
+				// Pooled JVMs run a single task
+				RUNNING.remove(taskId);
+				server.stop();
+			}
+		}
+
+		LeinServer daemon = LeinServer.daemon(jvmCommand, leinHome, script);
+		RUNNING.put(taskId, daemon);
+		try {
+			return daemon.run(dir, env, args, listener.getLogger());
+		} catch(IOException e) {
+			// The task may still be running, start a new daemon for the next task
+			daemon.stop();
+			throw e;
+		} finally {
+			RUNNING.remove(taskId);
+		}
+	}
+
+	/**
+	 * Stops the server running a task, if any, on the agent. Server JVMs do not
+	 * have the id of the task in their environment, so they must be stopped
+	 * this way when the task is cancelled. The JVMs they fork for the task get
+	 * the environment of the build, with the id, and are killed with the other
+	 * processes of the task.
+	 */
+	static final class Stop extends MasterToSlaveCallable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String taskId;
+
+		Stop(String taskId) {
+			this.taskId = taskId;
+		}
+
+		public Void call() {
+			LeinServer server = RUNNING.remove(taskId);
+			if(server != null) {
+				server.stop();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the daemon or closes the pool of a JVM command line on the agent,
+	 * unless a task is using the daemon, so that its memory can go to a task
+	 * waiting for the memory budget of the node.
+	 */
+	static final class StopIdle extends MasterToSlaveCallable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> jvmCommand;
+		private final String leinHome;
+		private final int poolSize;
+
+		StopIdle(List<String> jvmCommand, String leinHome, int poolSize) {
+			this.jvmCommand = jvmCommand;
+			this.leinHome = leinHome;
+			this.poolSize = poolSize;
+		}
+
+		public Void call() {
+			if(poolSize > 0) {
+				LeinServerPool.close(jvmCommand, leinHome);
+			} else {
+				LeinServer.stopIdleDaemon(jvmCommand, leinHome);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package org.spootnik;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content hashes of the files of a workspace, by path, with the size,
+ * modification time and file key (the device and inode on Unix) they had
+ * when they were hashed, so that computing the key of a task only rehashes
+ * the files whose stat changed.
+ *
+ * <p>
+ * The index is kept on the node, one file per workspace, and shared by all
+ * the cached tasks of the workspace. Each use merges the files it hashed into
+ * the index and drops the files that no longer exist, under a lock of the
+ * index file so that tasks running in parallel do not lose each other's
+ * entries. Like the index of git, it does not trust files modified within
+ * {@link #RACY_MILLIS} of being hashed, as a change in the same tick of the
+ * file system clock would keep their stat.
+ */
+final class StatIndex {
+
+	/**
+	 * Directory of the indexes, relative to the root of the node.
+	 */
+	static final String DIR = "leiningen-plugin/stat-index";
+
+	static final long RACY_MILLIS = 2000;
+
+	/**
+	 * Locks of the index files in this JVM, striped by path.
+	 */
+	private static final Object[] LOCKS = new Object[64];
+	static {
+		for(int i = 0; i < LOCKS.length; i++) {
+			LOCKS[i] = new Object();
+		}
+	}
+
+	private static final class Entry {
+		final long size;
+		final long modified;
+		final String fileKey;
+		final String hash;
+
+		Entry(long size, long modified, String fileKey, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+
+		boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && modified == attributes.lastModifiedTime().toMillis()
+					&& fileKey.equals(fileKey(attributes));
+		}
+	}
+
+	private final File file;
+	private final Map<String,Entry> entries;
+	/**
+	 * Entries of the files hashed by this use that can be trusted next time.
+	 */
+	private final Map<String,Entry> seen = new ConcurrentHashMap<>();
+	/**
+	 * Files hashed by this use, trusted or not.
+	 */
+	private final Set<String> hashed = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger rehashed = new AtomicInteger();
+	private File dir;
+
+	private StatIndex(File file, Map<String,Entry> entries) {
+		this.file = file;
+		this.entries = entries;
+	}
+
+	/**
+	 * SHA-256 of each file of the project, by path relative to the project
+	 * directory, using and updating the index of the project directory.
+	 */
+	static Map<String,String> hashAll(File indexFile, File dir, List<String> paths) throws IOException {
+		synchronized(LOCKS[Math.floorMod(indexFile.getAbsolutePath().hashCode(), LOCKS.length)]) {
+			StatIndex index = load(indexFile);
+			Map<String,String> hashes = index.hashAll(dir, paths);
+			index.save();
+			return hashes;
+		}
+	}
+
+	/**
+	 * Reads an index, which is empty if the file does not exist or cannot be read.
+	 */
+	static StatIndex load(File file) {
+		Map<String,Entry> entries = new HashMap<>();
+		try {
+			if(file.isFile()) {
+				for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+					String[] fields = line.split("\t", 5);
+					if(fields.length == 5) {
+						entries.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3],
+								fields[0]));
+					}
+				}
+			}
+		} catch(IOException | NumberFormatException e) {
+			// rehash everything
+			entries.clear();
+		}
+		return new StatIndex(file, entries);
+	}
+
+	/**
+	 * SHA-256 of each file of the project, by path relative to the project
+	 * directory, rehashing in parallel the files whose stat changed.
+	 */
+	Map<String,String> hashAll(File dir, List<String> paths) throws IOException {
+		this.dir = dir;
+		Map<String,String> hashes = Collections.synchronizedMap(new TreeMap<>());
+		long now = System.currentTimeMillis();
+		try {
+			paths.parallelStream().distinct().forEach(path -> {
+				try {
+					File file = new File(dir, path);
+					BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+					Entry entry = entries.get(path);
+					if(entry == null || !entry.matches(attributes)) {
+						entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey(attributes),
+								OutputCache.sha256(file));
+						rehashed.incrementAndGet();
+					}
+					hashes.put(path, entry.hash);
+					hashed.add(path);
+					if(now - entry.modified >= RACY_MILLIS) {
+						seen.put(path, entry);
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return hashes;
+	}
+
+	/**
+	 * Number of files hashed because the index had no matching entry.
+	 */
+	int rehashed() {
+		return rehashed.get();
+	}
+
+	/**
+	 * Writes the index with the entries of the files hashed by
+	 * {@link #hashAll(File, List)} merged in, without the files that no longer exist.
+	 */
+	void save() throws IOException {
+		Map<String,Entry> merged = new TreeMap<>(entries);
+		merged.keySet().removeAll(hashed);
+		merged.putAll(seen);
+		if(dir != null) {
+			merged.keySet().removeIf(path -> !hashed.contains(path) && !new File(dir, path).isFile());
+		}
+		StringBuilder content = new StringBuilder();
+		for(Map.Entry<String,Entry> entry : merged.entrySet()) {
+			Entry value = entry.getValue();
+			content.append(value.hash).append('\t').append(value.size).append('\t').append(value.modified)
+					.append('\t').append(value.fileKey).append('\t').append(entry.getKey()).append('\n');
+		}
+		Files.createDirectories(file.getParentFile().toPath());
+		Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+		OutputCache.move(temp, file.toPath());
+	}
+
+	private static String fileKey(BasicFileAttributes attributes) {
+		Object key = attributes.fileKey();
+		return key == null ? "" : key.toString().replace('\t', ' ');
+	}
+}
@@ -0,0 +1,324 @@
+package org.spootnik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A validated graph of lein tasks, numbered in topological order.
+ *
+ * <p>
+ * Every dependency of a task is itself a task and there are no cycles, so
+ * running the tasks in number order always respects their dependencies.
+ * The graph is immutable, and also holds the command line arguments and the
+ * attributes of each task, so it can be compiled once and reused by every build.
+ */
+final class TaskGraph {
+
+	private final List<String> names;
+	private final Map<String,Integer> indexes;
+	private final int[][] dependencies;
+	private final int[][] dependents;
+	private final List<List<String>> arguments;
+	private final List<Map<String,String>> attributes;
+
+	/**
+	 * @param taskAttributes
+	 *      Attributes of the tasks that have some, by name.
+	 */
+	private TaskGraph(List<String> names, int[][] dependencies, int[][] dependents,
+			Map<String,Map<String,String>> taskAttributes) {
+		this.names = Collections.unmodifiableList(names);
+		this.indexes = new HashMap<>();
+		this.arguments = new ArrayList<>(names.size());
+		List<Map<String,String>> attributes = new ArrayList<>(names.size());
+		for(int i = 0; i < names.size(); i++) {
+			indexes.put(names.get(i), i);
+			arguments.add(tokenize(names.get(i)));
+			attributes.add(Collections.unmodifiableMap(
+					taskAttributes.getOrDefault(names.get(i), Collections.emptyMap())));
+		}
+		this.attributes = Collections.unmodifiableList(attributes);
+		this.dependencies = dependencies;
+		this.dependents = dependents;
+	}
+
+	/**
+	 * Attributes a task line may have after a "#".
+	 */
+	static final Set<String> ATTRIBUTES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+			"cheap", "inputs", "outputs", "profile", "weight")));
+
+	/**
+	 * Parses task lines of the form "task: dep1; dep2" into the dependencies of each task.
+	 * Attributes at the end of the line are ignored.
+	 */
+	static Map<String,List<String>> parse(String tasks) {
+		HashMap<String,List<String>> taskDeps = new HashMap<>();
+		
+		Arrays.asList(tasks.split("\n")).stream().filter(t -> !t.trim().isEmpty()).forEach( (line) -> {
+			String task = withoutAttributes(line);
+			String[] taskAndDeps = task.split(":");
+			if(taskAndDeps.length > 2) {
+				throw new IllegalArgumentException("Expected task line to be: \"task: deps\"");
+			}
+			List<String> deps = taskAndDeps.length < 2 
+					? Collections.emptyList()
+					: Arrays.asList(taskAndDeps[1].split(";"))
+						.stream().map(d -> d.trim()).filter(d -> !d.isEmpty()).collect(Collectors.toList());
+			taskDeps.put(taskAndDeps[0].trim(), deps);
+		});
+		
+		return taskDeps;
+	}
+
+	private static String withoutAttributes(String line) {
+		int hash = line.indexOf('#');
+		return hash < 0 ? line : line.substring(0, hash);
+	}
+
+	/**
+	 * Parses the attributes at the end of task lines, as in
+	 * "uberjar: compile # profile=throughput", by task. An attribute without
+	 * "=", as in "pom # cheap", has the value "true".
+	 *
+	 * @throws IllegalArgumentException
+	 *      if an attribute is unknown or has an empty value
+	 */
+	static Map<String,Map<String,String>> parseAttributes(String tasks) {
+		Map<String,Map<String,String>> attributes = new HashMap<>();
+		for(String line : tasks.split("\n")) {
+			int hash = line.indexOf('#');
+			if(hash < 0) {
+				continue;
+			}
+			String task = line.substring(0, hash).split(":")[0].trim();
+			Map<String,String> taskAttributes = new TreeMap<>();
+			for(String attribute : line.substring(hash + 1).trim().split("\\s+")) {
+				if(attribute.isEmpty()) {
+					continue;
+				}
+				String[] keyValue = attribute.split("=", 2);
+				if(!ATTRIBUTES.contains(keyValue[0])) {
+					throw new IllegalArgumentException("Unknown attribute \"" + keyValue[0] + "\" of task \"" + task
+							+ "\", expected one of " + ATTRIBUTES);
+				}
+				if(keyValue.length == 2 && keyValue[1].isEmpty()) {
+					throw new IllegalArgumentException("Attribute \"" + keyValue[0] + "\" of task \"" + task + "\" has no value");
+				}
+				taskAttributes.put(keyValue[0], keyValue.length == 2 ? keyValue[1] : "true");
+			}
+			attributes.put(task, taskAttributes);
+		}
+		return attributes;
+	}
+
+	/**
+	 * Parses, validates and sorts the task lines.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if a line is malformed or the tasks do not form a valid graph
+	 */
+	static TaskGraph compile(String tasks) {
+		return compile(parse(tasks), parseAttributes(tasks));
+	}
+
+	/**
+	 * Validates and sorts the tasks.
+	 *
+	 * @throws IllegalArgumentException
+	 *      if a task depends on something that is not a task, or tasks depend on each other
+	 */
+	static TaskGraph compile(Map<String,List<String>> taskDeps) {
+		return compile(taskDeps, Collections.emptyMap());
+	}
+
+	private static TaskGraph compile(Map<String,List<String>> taskDeps, Map<String,Map<String,String>> attributes) {
+		// Number the tasks by name first, so that the order is stable
+		List<String> sorted = new ArrayList<>(new TreeSet<>(taskDeps.keySet()));
+		Map<String,Integer> byName = new HashMap<>();
+		for(int i = 0; i < sorted.size(); i++) {
+			byName.put(sorted.get(i), i);
+		}
+
+		int size = sorted.size();
+		int[][] deps = new int[size][];
+		for(int i = 0; i < size; i++) {
+			String task = sorted.get(i);
+			deps[i] = taskDeps.get(task).stream().distinct().mapToInt(d -> {
+				Integer dep = byName.get(d);
+				if(dep == null) {
+					throw new IllegalArgumentException("Task \"" + task + "\" depends on \"" + d + "\", which is not a task");
+				}
+				return dep;
+			}).toArray();
+		}
+
+		// Depth-first search, emitting each task after its dependencies
+		int[] order = new int[size];
+		int[] position = new int[size];
+		byte[] mark = new byte[size];
+		int[] count = { 0 };
+		for(int i = 0; i < size; i++) {
+			visit(i, deps, mark, order, count, new ArrayList<>(), sorted);
+		}
+		for(int i = 0; i < size; i++) {
+			position[order[i]] = i;
+		}
+
+		List<String> names = new ArrayList<>(size);
+		int[][] dependencies = new int[size][];
+		List<List<Integer>> dependentLists = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			names.add(sorted.get(order[i]));
+			dependencies[i] = Arrays.stream(deps[order[i]]).map(d -> position[d]).sorted().toArray();
+			dependentLists.add(new ArrayList<>());
+		}
+		for(int i = 0; i < size; i++) {
+			for(int d : dependencies[i]) {
+				dependentLists.get(d).add(i);
+			}
+		}
+		int[][] dependents = new int[size][];
+		for(int i = 0; i < size; i++) {
+			dependents[i] = dependentLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+		}
+		return new TaskGraph(names, dependencies, dependents, attributes);
+	}
+
+	private static final byte VISITING = 1, DONE = 2;
+
+	private static void visit(int task, int[][] deps, byte[] mark, int[] order, int[] count,
+			List<Integer> path, List<String> names) {
+		if(mark[task] == DONE) {
+			return;
+		}
+		path.add(task);
+		if(mark[task] == VISITING) {
+			// Report the cycle from the first occurrence of the task on the path
+			StringBuilder cycle = new StringBuilder();
+			for(int i = path.indexOf(task); i < path.size(); i++) {
+				cycle.append(cycle.length() == 0 ? "" : " -> ").append(names.get(path.get(i)));
+			}
+			throw new IllegalArgumentException("Tasks depend on each other: " + cycle);
+		}
+		mark[task] = VISITING;
+		for(int dep : deps[task]) {
+			visit(dep, deps, mark, order, count, path, names);
+		}
+		mark[task] = DONE;
+		path.remove(path.size() - 1);
+		order[count[0]++] = task;
+	}
+
+	private static final Pattern ARGUMENT = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
+
+	/**
+	 * Splits a lein command line into arguments. Arguments may be quoted
+	 * with single or double quotes to include spaces.
+	 */
+	static List<String> tokenize(String task) {
+		List<String> args = new ArrayList<>();
+		Matcher matcher = ARGUMENT.matcher(task);
+		while (matcher.find()) {
+			if (matcher.group(1) != null)
+				args.add(matcher.group(1));
+			else if (matcher.group(2) != null)
+				args.add(matcher.group(2));
+			else
+				args.add(matcher.group());
+		}
+		return Collections.unmodifiableList(args);
+	}
+
+	int size() {
+		return names.size();
+	}
+
+	/**
+	 * Task names in topological order.
+	 */
+	List<String> names() {
+		return names;
+	}
+
+	String name(int task) {
+		return names.get(task);
+	}
+
+	/**
+	 * @return the number of the task, or -1 if it is not part of the graph
+	 */
+	int indexOf(String task) {
+		Integer index = indexes.get(task);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Command line arguments of the task for leiningen.
+	 */
+	List<String> arguments(int task) {
+		return arguments.get(task);
+	}
+
+	/**
+	 * Value of an attribute given to the task on its line, or null if it has none.
+	 */
+	String attribute(int task, String name) {
+		return attributes.get(task).get(name);
+	}
+
+	/**
+	 * Groups the tasks into steps, where the tasks of a step only depend on tasks
+	 * of earlier steps and may run in parallel.
+	 */
+	List<List<String>> plan() {
+		int[] step = new int[size()];
+		List<List<String>> plan = new ArrayList<>();
+		for(int i = 0; i < size(); i++) {
+			for(int dep : dependencies[i]) {
+				step[i] = Math.max(step[i], step[dep] + 1);
+			}
+			if(step[i] == plan.size()) {
+				plan.add(new ArrayList<>());
+			}
+			plan.get(step[i]).add(names.get(i));
+		}
+		return plan;
+	}
+
+	/**
+	 * Tasks that must complete before the given one, all with lower numbers.
+	 */
+	int[] dependencies(int task) {
+		return dependencies[task];
+	}
+
+	/**
+	 * Names of the dependencies of each task.
+	 */
+	Map<String,List<String>> toMap() {
+		Map<String,List<String>> map = new LinkedHashMap<>();
+		for(int i = 0; i < size(); i++) {
+			map.put(names.get(i), Arrays.stream(dependencies[i]).mapToObj(names::get).collect(Collectors.toList()));
+		}
+		return map;
+	}
+
+	/**
+	 * Tasks that depend on the given one, all with higher numbers.
+	 */
+	int[] dependents(int task) {
+		return dependents[task];
+	}
+}
@@ -0,0 +1,208 @@
+package org.spootnik;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Wall-clock duration, exit code and peak RSS of past runs of each lein task of a job.
+ *
+ * <p>
+ * Runs are appended to a file in the job directory, one line per run:
+ * <pre>timestamp duration-ms exit-code peak-rss-kb task</pre>
+ * separated by tabs. Only the last {@link #KEEP} runs of each task are
+ * kept in memory, and the file is rewritten with just those runs when it
+ * grows too large.
+ */
+class TaskHistory {
+
+	private static final Logger LOGGER = Logger.getLogger(TaskHistory.class.getName());
+
+	static final String FILE_NAME = "leiningen-history.log";
+
+	/**
+	 * Number of runs per task the rolling medians are computed from.
+	 */
+	static final int KEEP = 11;
+
+	/**
+	 * Histories by file, shared while builds use them. The JVM may drop a history
+	 * no build holds when it needs the memory, and it is read again from its file,
+	 * so deleted and renamed jobs do not keep theirs.
+	 */
+	private static final Map<File,SoftReference<TaskHistory>> HISTORIES = new HashMap<>();
+
+	static final class Run {
+		final long timestamp;
+		final long duration;
+		final int exitCode;
+		final long peakRssKb;
+
+		Run(long timestamp, long duration, int exitCode, long peakRssKb) {
+			this.timestamp = timestamp;
+			this.duration = duration;
+			this.exitCode = exitCode;
+			this.peakRssKb = peakRssKb;
+		}
+	}
+
+	private final File file;
+	private final Map<String,Deque<Run>> runs = new HashMap<>();
+	private int lines;
+
+	private TaskHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * The history stored in the given job directory, shared by all builds of the job.
+	 */
+	static TaskHistory forJob(File jobDir) {
+		File file = new File(jobDir, FILE_NAME);
+		synchronized(HISTORIES) {
+			HISTORIES.values().removeIf(h -> h.get() == null);
+			SoftReference<TaskHistory> reference = HISTORIES.get(file);
+			TaskHistory history = reference != null ? reference.get() : null;
+			if(history == null) {
+				history = new TaskHistory(file);
+				history.load();
+				HISTORIES.put(file, new SoftReference<>(history));
+			}
+			return history;
+		}
+	}
+
+	private synchronized void load() {
+		if(!file.exists()) {
+			return;
+		}
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while((line = in.readLine()) != null) {
+				lines++;
+				String[] fields = line.split("\t", 5);
+				if(fields.length < 5) {
+					continue;
+				}
+				try {
+					add(fields[4], new Run(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+							Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+				} catch(NumberFormatException e) {
+					// a partially written line, skip it
+				}
+			}
+		} catch(IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read Leiningen task history " + file, e);
+		}
+	}
+
+	private void add(String task, Run run) {
+		Deque<Run> taskRuns = runs.computeIfAbsent(task, t -> new ArrayDeque<>());
+		taskRuns.addLast(run);
+		while(taskRuns.size() > KEEP) {
+			taskRuns.removeFirst();
+		}
+	}
+
+	/**
+	 * Appends a run of the task to the history.
+	 */
+	synchronized void record(String task, long duration, int exitCode, long peakRssKb) throws IOException {
+		Run run = new Run(System.currentTimeMillis(), duration, exitCode, peakRssKb);
+		add(task, run);
+
+		if(lines > Math.max(100, runs.size() * KEEP * 4)) {
+			compact();
+		} else {
+			try(OutputStream out = new FileOutputStream(file, true)) {
+				out.write(format(task, run).getBytes(StandardCharsets.UTF_8));
+			}
+			lines++;
+		}
+	}
+
+	/**
+	 * Rewrites the file with only the runs kept in memory.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		lines = 0;
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+			for(Map.Entry<String,Deque<Run>> e : runs.entrySet()) {
+				for(Run run : e.getValue()) {
+					out.write(format(e.getKey(), run));
+					lines++;
+				}
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String format(String task, Run run) {
+		return run.timestamp + "\t" + run.duration + "\t" + run.exitCode + "\t" + run.peakRssKb + "\t"
+				+ task.replace('\t', ' ').replace('\n', ' ') + "\n";
+	}
+
+	/**
+	 * Median duration in milliseconds of the recent successful runs of the task, or -1 if there are none.
+	 */
+	synchronized long medianDuration(String task) {
+		return median(successful(task).stream().map(r -> r.duration).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Median peak RSS in kilobytes of the recent successful runs of the task, or -1 if unknown.
+	 */
+	synchronized long medianPeakRssKb(String task) {
+		return median(successful(task).stream().map(r -> r.peakRssKb).filter(r -> r > 0).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Estimated duration of the task in milliseconds. Tasks that never ran
+	 * successfully are assumed to take as long as the median known task.
+	 */
+	synchronized long estimate(String task) {
+		long median = medianDuration(task);
+		if(median >= 0) {
+			return median;
+		}
+		long overall = median(runs.keySet().stream()
+				.map(this::medianDuration).filter(d -> d >= 0).collect(Collectors.toList()));
+		return overall >= 0 ? overall : 1;
+	}
+
+	private List<Run> successful(String task) {
+		return runs.getOrDefault(task, new ArrayDeque<>()).stream()
+				.filter(r -> r.exitCode == 0).collect(Collectors.toList());
+	}
+
+	static long median(List<Long> values) {
+		if(values.isEmpty()) {
+			return -1;
+		}
+		List<Long> sorted = new ArrayList<>(values);
+		Collections.sort(sorted);
+		int mid = sorted.size() / 2;
+		return sorted.size() % 2 == 1 ? sorted.get(mid) : (sorted.get(mid - 1) + sorted.get(mid)) / 2;
+	}
+}
@@ -0,0 +1,295 @@
+package org.spootnik;
+
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.spootnik.TaskStates.Status;
+
+/**
+ * Runs a graph of lein tasks in dependency order.
+ *
+ * <p>
+ * Instead of polling the status of every task, each task keeps a count of
+ * its unfinished dependencies. When a task completes, the counters of its
+ * dependents are decremented and the ones reaching zero are started right
+ * away.
+ *
+ * <p>
+ * When more tasks are ready than can be started, the ones with the longest
+ * estimated path to the end of the graph go first, so the critical path does
+ * not wait behind tasks that nothing else depends on.
+ *
+ * <p>
+ * Cheap tasks that are ready at the same time and have the same dependencies
+ * can be run together as a batch, which counts as a single running task.
+ */
+class TaskScheduler {
+
+	/**
+	 * Decides whether a ready task may be started now.
+	 */
+	interface Admission {
+		/**
+		 * @param running
+		 *      Number of tasks of this build that are running.
+		 */
+		boolean admit(String task, int running);
+
+		Admission ALWAYS = (task, running) -> true;
+	}
+
+	/**
+	 * How long a task that was not admitted waits before asking again,
+	 * unless another task finishes first.
+	 */
+	private static final long ADMISSION_RECHECK_SECONDS = 5;
+
+	private final TaskGraph graph;
+	private final ExecutorService executor;
+	private final int maxRunning;
+	private final PrintStream log;
+	private ToLongFunction<String> estimate = task -> 1;
+	private boolean keepGoing;
+	private Consumer<Collection<String>> cancellation = tasks -> {};
+	private Predicate<String> cheap = task -> false;
+	private Function<String,?> batchGroup = task -> "";
+	private Function<List<String>,List<Boolean>> batchRunner;
+
+	/**
+	 * @param maxRunning
+	 *      Maximum number of tasks running at the same time. Further ready
+	 *      tasks wait, and start longest estimated remaining path first, then
+	 *      in graph order.
+	 */
+	TaskScheduler(TaskGraph graph, ExecutorService executor, int maxRunning, PrintStream log) {
+		this.graph = graph;
+		this.executor = executor;
+		this.maxRunning = maxRunning;
+		this.log = log;
+	}
+
+	/**
+	 * Sets the estimated duration of each task used to find the critical path.
+	 * By default every task counts the same.
+	 */
+	TaskScheduler estimates(ToLongFunction<String> estimate) {
+		this.estimate = estimate;
+		return this;
+	}
+
+	/**
+	 * In keep-going mode a failed task only stops its dependents, every
+	 * other task still runs, so all failures are reported.
+	 */
+	TaskScheduler keepGoing(boolean keepGoing) {
+		this.keepGoing = keepGoing;
+		return this;
+	}
+
+	/**
+	 * Sets what to do with the running tasks when the first task fails and not
+	 * keeping going. The cancelled tasks are still waited for.
+	 */
+	TaskScheduler cancellation(Consumer<Collection<String>> cancellation) {
+		this.cancellation = cancellation;
+		return this;
+	}
+
+	/**
+	 * Runs ready cheap tasks with the same dependencies together with the
+	 * batch runner, which returns whether each task succeeded, in order.
+	 */
+	TaskScheduler batching(Predicate<String> cheap, Function<List<String>,List<Boolean>> batchRunner) {
+		this.cheap = cheap;
+		this.batchRunner = batchRunner;
+		return this;
+	}
+
+	/**
+	 * Only runs tasks in a batch with tasks of the same group, such as the
+	 * tasks that need the same JVM. By default all cheap tasks are in the same group.
+	 */
+	TaskScheduler batchGroup(Function<String,?> batchGroup) {
+		this.batchGroup = batchGroup;
+		return this;
+	}
+
+	boolean run(Predicate<String> runner) throws InterruptedException {
+		return run(runner, Admission.ALWAYS);
+	}
+
+	/**
+	 * Runs all tasks with the given runner, which returns true if the task succeeded.
+	 * Every ready task must be admitted before it is started.
+	 * No new tasks are started after the first failure and the running ones are
+	 * cancelled, unless keeping going.
+	 *
+	 * @return true if every task completed successfully
+	 */
+	boolean run(Predicate<String> runner, Admission admission) throws InterruptedException {
+		TaskStates states = new TaskStates(graph.names());
+		int size = graph.size();
+		int[] inDegree = new int[size];
+		for(int i = 0; i < size; i++) {
+			inDegree[i] = graph.dependencies(i).length;
+		}
+
+		// Ready tasks ordered by longest remaining path first. Dependents have
+		// higher numbers, so their paths are known when going backwards.
+		long[] remaining = new long[size];
+		for(int i = size - 1; i >= 0; i--) {
+			long longest = 0;
+			for(int dependent : graph.dependents(i)) {
+				longest = Math.max(longest, remaining[dependent]);
+			}
+			remaining[i] = Math.max(0, estimate.applyAsLong(graph.name(i))) + longest;
+		}
+		PriorityQueue<Integer> ready = new PriorityQueue<>(
+				Comparator.comparingLong((Integer t) -> remaining[t]).reversed()
+					.thenComparing(Comparator.naturalOrder()));
+		for(int i = 0; i < size; i++) {
+			if(inDegree[i] == 0) {
+				ready.add(i);
+			}
+		}
+
+		CompletionService<List<Map.Entry<Integer,Boolean>>> completions = new ExecutorCompletionService<>(executor);
+		// Batches count as one
+		int running = 0;
+
+		while(true) {
+			// Start tasks whose dependencies are complete while there are free slots.
+			// Unless keeping going, nothing new is started after a failure.
+			boolean delayed = false;
+			while((keepGoing || states.count(Status.FAILED) == 0)
+					&& running < maxRunning && !ready.isEmpty()) {
+				int task = ready.peek();
+				String name = states.name(task);
+				if(!admission.admit(name, running)) {
+					delayed = true;
+					break;
+				}
+				ready.poll();
+				List<Integer> batch = batch(task, ready);
+				List<String> names = new ArrayList<>();
+				for(int t : batch) {
+					states.transition(t, Status.PENDING, Status.RUNNING);
+					names.add(states.name(t));
+				}
+				log.println("Running Leiningen tasks: " + String.join(", ", names));
+				running++;
+				completions.submit(() -> runSafely(runner, batch, names));
+			}
+			if(running == 0) {
+				break;
+			}
+
+			// Wait for the next task to finish and release its dependents.
+			// A delayed task asks for admission again after a while.
+			Future<List<Map.Entry<Integer,Boolean>>> next = delayed
+					? completions.poll(ADMISSION_RECHECK_SECONDS, TimeUnit.SECONDS)
+					: completions.take();
+			if(next == null) {
+				continue;
+			}
+			running--;
+			List<Map.Entry<Integer,Boolean>> results;
+			try {
+				results = next.get();
+			} catch(ExecutionException ee) {
+				// runSafely does not throw
+				throw new IllegalStateException(ee.getCause());
+			}
+			for(Map.Entry<Integer,Boolean> result : results) {
+				finished(result.getKey(), result.getValue(), states, inDegree, ready);
+			}
+		}
+
+		if(states.count(Status.FAILED) > 0) {
+			log.println("Failed Leiningen tasks: " + String.join(", ", states.names(Status.FAILED)));
+		}
+		if(states.count(Status.PENDING) > 0) {
+			log.println("Leiningen tasks not run: " + String.join(", ", states.names(Status.PENDING)));
+		}
+		return states.count(Status.COMPLETE) == size;
+	}
+
+	/**
+	 * The task and, if it is cheap, the other ready cheap tasks with the same
+	 * dependencies and batch group, which are removed from the ready queue.
+	 */
+	private List<Integer> batch(int task, PriorityQueue<Integer> ready) {
+		List<Integer> batch = new ArrayList<>();
+		batch.add(task);
+		if(batchRunner == null || !cheap.test(graph.name(task))) {
+			return batch;
+		}
+		Object group = batchGroup.apply(graph.name(task));
+		for(Integer other : ready) {
+			if(cheap.test(graph.name(other)) && Arrays.equals(graph.dependencies(other), graph.dependencies(task))
+					&& Objects.equals(batchGroup.apply(graph.name(other)), group)) {
+				batch.add(other);
+			}
+		}
+		ready.removeAll(batch);
+		return batch;
+	}
+
+	private void finished(int task, boolean success, TaskStates states, int[] inDegree, PriorityQueue<Integer> ready) {
+		if(success) {
+			states.transition(task, Status.RUNNING, Status.COMPLETE);
+			for(int dependent : graph.dependents(task)) {
+				if(--inDegree[dependent] == 0) {
+					ready.add(dependent);
+				}
+			}
+		} else {
+			states.transition(task, Status.RUNNING, Status.FAILED);
+			if(states.count(Status.FAILED) == 1 && !keepGoing && states.count(Status.RUNNING) > 0) {
+				List<String> running = states.names(Status.RUNNING);
+				log.println("Leiningen task " + states.name(task) + " failed, cancelling: " + String.join(", ", running));
+				cancellation.accept(running);
+			}
+		}
+	}
+
+	/**
+	 * Runs a task or batch of tasks, a runner throwing counts as the tasks failing.
+	 */
+	private List<Map.Entry<Integer,Boolean>> runSafely(Predicate<String> runner, List<Integer> tasks, List<String> names) {
+		List<Boolean> successes;
+		try {
+			successes = tasks.size() == 1
+					? Collections.singletonList(runner.test(names.get(0)))
+					: batchRunner.apply(names);
+		} catch(RuntimeException e) {
+			log.println("Leiningen tasks " + String.join(", ", names) + " failed: " + e);
+			successes = Collections.emptyList();
+		}
+		List<Map.Entry<Integer,Boolean>> results = new ArrayList<>();
+		for(int i = 0; i < tasks.size(); i++) {
+			// A task the batch did not report on did not succeed
+			results.add(new AbstractMap.SimpleImmutableEntry<>(tasks.get(i), i < successes.size() && successes.get(i)));
+		}
+		return results;
+	}
+}
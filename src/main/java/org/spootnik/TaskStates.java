@@ -0,0 +1,70 @@
+package org.spootnik;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Status of each task of a graph, indexed by task number.
+ *
+ * <p>
+ * Statuses only change through {@link #transition(int, Status, Status)}, which
+ * also keeps a count of the tasks in each status, so whether the graph is done
+ * can be told from the counts without looking at every task. Only the thread
+ * scheduling the graph reads and updates them; tasks report back to it.
+ */
+class TaskStates {
+
+	enum Status { PENDING, RUNNING, COMPLETE, FAILED }
+
+	private final List<String> names;
+	private final Status[] states;
+	private final int[] counts = new int[Status.values().length];
+
+	/**
+	 * All tasks start as {@link Status#PENDING}, numbered in the order given.
+	 */
+	TaskStates(Collection<String> tasks) {
+		this.names = new ArrayList<>(tasks);
+		this.states = new Status[names.size()];
+		Arrays.fill(states, Status.PENDING);
+		counts[Status.PENDING.ordinal()] = names.size();
+	}
+
+	String name(int task) {
+		return names.get(task);
+	}
+
+	/**
+	 * Changes the status of the task if it currently is {@code from}.
+	 *
+	 * @return false if the task had another status
+	 */
+	boolean transition(int task, Status from, Status to) {
+		if(states[task] != from) {
+			return false;
+		}
+		states[task] = to;
+		counts[from.ordinal()]--;
+		counts[to.ordinal()]++;
+		return true;
+	}
+
+	int count(Status status) {
+		return counts[status.ordinal()];
+	}
+
+	/**
+	 * Names of the tasks that currently have the given status.
+	 */
+	List<String> names(Status status) {
+		List<String> result = new ArrayList<>();
+		for(int i = 0; i < names.size(); i++) {
+			if(states[i] == status) {
+				result.add(names.get(i));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,51 @@
+;; Describes how a project runs its tests, for the direct classpath mode of
+;; the Jenkins Leiningen plugin.
+;;
+;; Reads the project with the given profiles plus the test profiles, like
+;; `lein test` does, and prints the JVM arguments, classpath, test paths and
+;; injections of the test JVM, one per line, each prefixed by its kind. When
+;; the tests need more than that to run, for instance compiling Java sources
+;; first, prints the reason instead.
+
+(ns leiningen-plugin.describe
+  (:require [clojure.java.io :as io]
+            [clojure.string :as str]
+            [leiningen.core.classpath :as classpath]
+            [leiningen.core.eval :as eval]
+            [leiningen.core.project :as project]))
+
+(defn- unsupported
+  "Why the tests of the project cannot run directly on its classpath, if they cannot."
+  [project]
+  (cond
+    (seq (:java-source-paths project)) ":java-source-paths must be compiled by Leiningen"
+    (seq (:aot project)) ":aot namespaces must be compiled by Leiningen"
+    (not (every? #{"javac" "compile"} (:prep-tasks project))) ":prep-tasks must be run by Leiningen"
+    (not= :subprocess (:eval-in project :subprocess)) ":eval-in is not :subprocess"
+    (:default (:test-selectors project)) ":test-selectors has a :default selector"))
+
+(defn- print-line [kind value]
+  (println (str "leiningen-plugin " kind " " value)))
+
+(defn describe
+  "Prints the description of the test JVM of the project in dir."
+  [dir profiles]
+  (doseq [init ['leiningen.core.project/ensure-dynamic-classloader
+                'leiningen.core.user/init]]
+    (when-let [f (resolve init)]
+      (f)))
+  (let [project (-> (project/read (str (io/file dir "project.clj")) (into [:default] profiles))
+                    (project/merge-profiles [:leiningen/test :test]))]
+    (if-let [reason (unsupported project)]
+      (print-line "unsupported" reason)
+      (do
+        (doseq [arg (eval/get-jvm-args project)]
+          (print-line "jvm" arg))
+        (print-line "classpath" (str/join java.io.File/pathSeparator (classpath/get-classpath project)))
+        (doseq [path (:test-paths project)]
+          (print-line "test-path" path))
+        (doseq [form (:injections project)]
+          (print-line "injection" (binding [*print-meta* true] (pr-str form)))))))
+  (flush)
+  (shutdown-agents)
+  (System/exit 0))
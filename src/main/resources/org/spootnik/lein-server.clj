@@ -0,0 +1,122 @@
+;; Runs Leiningen tasks inside an already started JVM, for the daemon
+;; execution mode of the Jenkins Leiningen plugin.
+;;
+;; The server reads a secret from the first line of stdin, then prints the
+;; port it listens on (on the loopback interface only) to stdout. A request
+;; is a connection sending the secret, a task id, the project directory, the
+;; environment of the build as a map literal and the task arguments, one per
+;; line, ended by an empty line. The response is the output of the task,
+;; followed by a line with the task id and the exit code. Leiningen passes
+;; the environment on to the JVMs it forks.
+;;
+;; The run-batch function instead runs several tasks in this JVM one after
+;; the other, for batches of cheap tasks.
+
+(ns leiningen-plugin.server
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [leiningen.core.eval]
+            [leiningen.core.main :as main]
+            [leiningen.core.project :as project])
+  (:import (java.io BufferedReader InputStreamReader OutputStreamWriter PrintWriter)
+           (java.net InetAddress ServerSocket)))
+
+(defn- read-project
+  "Reads the project of the directory, or the default project if there is none."
+  [dir]
+  (let [file (io/file dir "project.clj")]
+    (if (.exists file)
+      (project/read (str file))
+      (when-let [default-project (resolve 'leiningen.core.main/default-project)]
+        (default-project)))))
+
+(defn run-task
+  "Runs the lein task with the given arguments in the project directory,
+  printing its output to out. Returns the exit code. The JVMs the task forks
+  get the environment of this JVM merged with env, if not nil. Only binds
+  vars, so that it can run inside the JVM of an agent."
+  [dir env args out]
+  (let [cwd (resolve 'leiningen.core.main/*cwd*)
+        eval-dir (resolve 'leiningen.core.eval/*dir*)
+        env-var (resolve 'leiningen.core.eval/*env*)]
+    (with-bindings (cond-> {#'*out* out
+                            #'*err* out
+                            #'main/*exit-process?* false}
+                     cwd (assoc cwd dir)
+                     eval-dir (assoc eval-dir dir)
+                     (and env env-var) (assoc env-var env))
+      (try
+        (let [project (read-project dir)]
+          (when-let [verify (and (:min-lein-version project)
+                                 (resolve 'leiningen.core.main/verify-min-version))]
+            (verify project))
+          (main/resolve-and-apply project args))
+        0
+        (catch clojure.lang.ExceptionInfo e
+          (if-let [code (:exit-code (ex-data e))]
+            (do (when-not (or (zero? code) (:suppress-msg (ex-data e)))
+                  (println (.getMessage e)))
+                code)
+            (do (.printStackTrace e (PrintWriter. out true))
+                1)))
+        (catch Throwable t
+          (.printStackTrace t (PrintWriter. out true))
+          1)
+        (finally
+          (flush))))))
+
+(defn- init
+  "What leiningen.core.main/-main does once per JVM."
+  []
+  (doseq [init ['leiningen.core.project/ensure-dynamic-classloader
+                'leiningen.core.user/init]]
+    (when-let [f (resolve init)]
+      (f))))
+
+(defn run-batch
+  "Runs the tasks, each a list of arguments, in the project directory. After
+  each task, prints a line with the batch id, the index of the task, its exit
+  code and its duration in milliseconds. Stops after the first failure unless
+  keep-going? is true, then exits."
+  [dir id tasks keep-going?]
+  (init)
+  (loop [[args & more] tasks
+         index 0]
+    (when args
+      (let [start (System/currentTimeMillis)
+            code (run-task dir nil args *out*)]
+        (println)
+        (println id index code (- (System/currentTimeMillis) start))
+        (flush)
+        (when (or keep-going? (zero? code))
+          (recur more (inc index))))))
+  (shutdown-agents)
+  (System/exit 0))
+
+(defn- handle
+  [socket secret]
+  (with-open [socket socket]
+    (let [in (BufferedReader. (InputStreamReader. (.getInputStream socket) "UTF-8"))
+          out (OutputStreamWriter. (.getOutputStream socket) "UTF-8")
+          [given id dir env & args] (take-while seq (repeatedly #(.readLine in)))]
+      (when (= given secret)
+        ;; This JVM runs one task at a time, so the task can have the
+        ;; property the lein script sets
+        (System/setProperty "leiningen.original.pwd" dir)
+        (let [code (run-task dir (edn/read-string env) args out)]
+          (.write out (str "\n" id " " code "\n"))
+          (.flush out))))))
+
+(defn serve
+  "Serves one task at a time, or just one task and exits when once? is true."
+  [once?]
+  (let [secret (.readLine (BufferedReader. (InputStreamReader. System/in "UTF-8")))
+        server (ServerSocket. 0 50 (InetAddress/getLoopbackAddress))]
+    (init)
+    (println (.getLocalPort server))
+    (flush)
+    (loop []
+      (handle (.accept server) secret)
+      (when-not once?
+        (recur)))
+    (System/exit 0)))
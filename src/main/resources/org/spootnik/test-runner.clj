@@ -0,0 +1,40 @@
+;; Runs clojure.test tests in a project JVM started on a cached classpath,
+;; for the direct classpath mode of the Jenkins Leiningen plugin.
+;;
+;; Like `lein test`, runs the given namespaces or all the namespaces found in
+;; the test paths, and exits with 1 if a test failed or threw.
+
+(ns leiningen-plugin.test-runner
+  (:require [clojure.java.io :as io]
+            [clojure.test :as test]))
+
+(defn- namespace-of
+  "Name of the namespace declared by the first form of the file, if it is an ns form."
+  [file]
+  (with-open [in (java.io.PushbackReader. (io/reader file))]
+    (binding [*read-eval* false]
+      (let [form (try
+                   (read {:read-cond :allow :eof nil} in)
+                   (catch Exception _ nil))]
+        (when (and (seq? form) (= 'ns (first form)) (symbol? (second form)))
+          (second form))))))
+
+(defn- namespaces [paths]
+  (->> (for [path paths
+             file (file-seq (io/file path))
+             :when (and (.isFile file) (re-find #"\.cljc?$" (.getName file)))]
+         (namespace-of file))
+       (remove nil?)
+       distinct
+       sort))
+
+(defn run
+  "Evaluates the injections of the project, then runs the tests and exits."
+  [paths names injections]
+  (doseq [form injections]
+    (eval (read-string form)))
+  (let [nses (if (seq names) (map symbol names) (namespaces paths))
+        _ (when (seq nses) (apply require :reload nses))
+        summary (apply test/run-tests nses)]
+    (shutdown-agents)
+    (System/exit (if (zero? (+ (:fail summary 0) (:error summary 0))) 0 1))))
@@ -0,0 +1,38 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BatchOutputTest {
+
+	@Test
+	public void testMarkers() throws Exception {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		BatchOutput out = new BatchOutput("b1", Arrays.asList("pom", "less once", "test2junit"), log);
+		out.write((
+				"Wrote pom.xml\n"+
+				"\n"+
+				"b1 0 0 812\n"+
+				"Compiling less\n"+
+				"other 1 0 5\n"+
+				"\n"+
+				"b1 1 1 40\n").getBytes(StandardCharsets.UTF_8));
+		out.close();
+
+		assertEquals(Integer.valueOf(0), out.exitValue(0));
+		assertEquals(812, out.duration(0));
+		assertEquals(Integer.valueOf(1), out.exitValue(1));
+		// stopped after the failure
+		assertNull(out.exitValue(2));
+
+		String text = log.toString("UTF-8");
+		assertTrue(text.contains("Leiningen task pom exited with 0\n"));
+		assertTrue(text.contains("other 1 0 5\n"));
+		assertFalse(text.contains("b1 "));
+	}
+}
@@ -0,0 +1,54 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CacheIndexTest {
+
+	private void store(File dir, File cache, String key, String... contents) throws Exception {
+		hudson.Util.deleteRecursive(new File(dir, "out"));
+		new File(dir, "out").mkdirs();
+		for(int i = 0; i < contents.length; i++) {
+			Files.write(new File(dir, "out/" + i).toPath(), contents[i].getBytes("UTF-8"));
+		}
+		new OutputCache.Store(cache.getPath(), dir.getPath(), key, Collections.singletonList("out")).call();
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() throws Exception {
+		File dir = Files.createTempDirectory("project").toFile();
+		File cache = Files.createTempDirectory("cache").toFile();
+
+		store(dir, cache, "a", "1234567890", "1234567890");
+		store(dir, cache, "b", "abcdefghij");
+		store(dir, cache, "c", "1234567890", "ABCDEFGHIJ");
+		CacheIndex index = CacheIndex.of(cache);
+
+		// Identical files are stored once
+		CacheIndex.Stats stats = index.evict(Long.MAX_VALUE);
+		assertEquals(3, stats.entries);
+		assertEquals(30, stats.storedBytes);
+		assertEquals(50, stats.logicalBytes);
+		assertEquals(0, stats.evictedEntries);
+
+		// "a" was used last, so "b" goes first, and the blob "c" shares with "a" stays
+		assertEquals(2, (int) new OutputCache.Restore(cache.getPath(), dir.getPath(), "a").call());
+		stats = index.evict(20);
+		assertEquals(1, stats.evictedEntries);
+		assertEquals(10, stats.evictedBytes);
+		assertEquals(20, stats.storedBytes);
+		assertFalse(OutputCache.manifest(cache, "b").exists());
+		assertEquals(-1, (int) new OutputCache.Restore(cache.getPath(), dir.getPath(), "b").call());
+
+		stats = index.evict(10);
+		assertEquals(Arrays.asList(1, 10L, 10L), Arrays.asList(stats.entries, stats.storedBytes, stats.evictedBytes));
+		assertTrue(OutputCache.manifest(cache, "a").exists());
+		assertEquals(2, (int) new OutputCache.Restore(cache.getPath(), dir.getPath(), "a").call());
+	}
+}
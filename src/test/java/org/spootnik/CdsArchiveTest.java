@@ -0,0 +1,16 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CdsArchiveTest {
+
+	@Test
+	public void testMajorVersion() {
+		assertEquals(8, CdsArchive.majorVersion("openjdk version \"1.8.0_292\"\nOpenJDK Runtime Environment"));
+		assertEquals(17, CdsArchive.majorVersion("openjdk version \"17.0.9\" 2023-10-17"));
+		assertEquals(21, CdsArchive.majorVersion("java version \"21\" 2023-09-19 LTS"));
+		assertEquals(-1, CdsArchive.majorVersion("not java"));
+	}
+}
@@ -0,0 +1,72 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirectTestTest {
+
+	@Test
+	public void testProfiles() {
+		assertEquals(Collections.emptyList(), DirectTest.profiles(TaskGraph.tokenize("test")));
+		assertEquals(Collections.emptyList(), DirectTest.profiles(TaskGraph.tokenize("test my.app-test")));
+		assertEquals(Arrays.asList("ci", "it"), DirectTest.profiles(TaskGraph.tokenize("with-profile +ci,+it test")));
+
+		assertNull(DirectTest.profiles(TaskGraph.tokenize("uberjar")));
+		assertNull(DirectTest.profiles(TaskGraph.tokenize("test :integration")));
+		assertNull(DirectTest.profiles(TaskGraph.tokenize("test test/my/app_test.clj")));
+		// replacing the default profiles is left to Leiningen
+		assertNull(DirectTest.profiles(TaskGraph.tokenize("with-profile ci test")));
+		assertNull(DirectTest.profiles(TaskGraph.tokenize("with-profile -dev test")));
+	}
+
+	@Test
+	public void testParse() {
+		DirectTest.Description description = DirectTest.parse(
+				"Retrieving foo/bar/1.0/bar-1.0.jar from clojars\n"+
+				"leiningen-plugin jvm -Dclojure.compile.path=/p/target/classes\n"+
+				"leiningen-plugin jvm -Xmx2g\n"+
+				"leiningen-plugin classpath /p/test:/p/src:/m2/clojure.jar\n"+
+				"leiningen-plugin test-path /p/test\n"+
+				"leiningen-plugin injection (require (quote user.tools))\n");
+
+		assertTrue(description.isComplete());
+		assertNull(description.unsupported);
+		assertEquals(Arrays.asList("-Dclojure.compile.path=/p/target/classes", "-Xmx2g"), description.jvmArguments);
+		assertEquals("/p/test:/p/src:/m2/clojure.jar", description.classpath);
+		assertEquals(Arrays.asList("/p/test"), description.testPaths);
+		assertEquals(Arrays.asList("(require (quote user.tools))"), description.injections);
+
+		assertEquals(":aot namespaces must be compiled by Leiningen",
+				DirectTest.parse("leiningen-plugin unsupported :aot namespaces must be compiled by Leiningen").unsupported);
+		assertFalse(DirectTest.parse("Exception in thread \"main\"").isComplete());
+	}
+
+	@Test
+	public void testCommand() throws Exception {
+		DirectTest.Description description = DirectTest.parse(
+				"leiningen-plugin jvm -Xmx2g\n"+
+				"leiningen-plugin classpath /p/test:/p/src\n"+
+				"leiningen-plugin test-path /p/test\n"+
+				"leiningen-plugin injection (println \"hi\")\n");
+
+		List<String> command = DirectTest.command("java", Arrays.asList("-XX:+UseSerialGC", "-Xmx512m"), description,
+				Arrays.asList("my.app-test"));
+		// the project's options come last, so they win
+		assertEquals(Arrays.asList("java", "-XX:+UseSerialGC", "-Xmx512m", "-Xmx2g", "-cp", "/p/test:/p/src",
+				"clojure.main", "-e"), command.subList(0, 8));
+		assertTrue(command.get(8).contains("(ns leiningen-plugin.test-runner"));
+		assertEquals("(leiningen-plugin.test-runner/run [\"/p/test\"] [\"my.app-test\"] [\"(println \\\"hi\\\")\"])",
+				command.get(10));
+	}
+
+	@Test
+	public void testDescribeForm() {
+		assertEquals("(leiningen-plugin.describe/describe \"C:\\\\p\" [:ci :it])",
+				DirectTest.describeForm("C:\\p", Arrays.asList("ci", "it")));
+	}
+}
@@ -0,0 +1,83 @@
+package org.spootnik;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for <tt>lein-server.clj</tt> in tests: speaks its protocol and,
+ * like Leiningen with the environment of a request, forks a process with it
+ * for each task, which runs until it is killed.
+ */
+final class FakeLeinServer {
+
+	private FakeLeinServer() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		String secret = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+		try(ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println(server.getLocalPort());
+			System.out.flush();
+			while(true) {
+				try(Socket socket = server.accept()) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+							StandardCharsets.UTF_8));
+					Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+					if(!secret.equals(in.readLine())) {
+						continue;
+					}
+					String id = in.readLine();
+					in.readLine();
+					Map<String,String> env = parseMap(in.readLine());
+					ProcessBuilder fork = new ProcessBuilder("sleep", "600");
+					fork.environment().putAll(env);
+					Process project = fork.start();
+					out.write("running\n");
+					out.flush();
+					int code = project.waitFor();
+					out.write("\n" + id + " " + code + "\n");
+					out.flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a map of strings as written by {@link LeinServer#map(Map)}.
+	 */
+	static Map<String,String> parseMap(String line) {
+		Map<String,String> map = new HashMap<>();
+		String key = null;
+		StringBuilder value = null;
+		for(int i = 1; i < line.length() - 1; i++) {
+			char c = line.charAt(i);
+			if(value == null) {
+				if(c == '"') {
+					value = new StringBuilder();
+				}
+			} else if(c == '\\') {
+				char escaped = line.charAt(++i);
+				value.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+			} else if(c == '"') {
+				if(key == null) {
+					key = value.toString();
+				} else {
+					map.put(key, value.toString());
+					key = null;
+				}
+				value = null;
+			} else {
+				value.append(c);
+			}
+		}
+		return map;
+	}
+}
@@ -2,6 +2,11 @@ package org.spootnik;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -32,4 +37,90 @@ public class LeiningenBuilderTest {
 		assertEquals("cljsbuild once prod", uberjar.get(1));
 	}
 
+	@Test
+	public void testParseMaxHeap() {
+		assertEquals(-1, LeiningenBuilder.parseMaxHeapMb(null));
+		assertEquals(-1, LeiningenBuilder.parseMaxHeapMb("-Xms512m"));
+		assertEquals(512, LeiningenBuilder.parseMaxHeapMb("-Xmx512m"));
+		assertEquals(2048, LeiningenBuilder.parseMaxHeapMb("-Xms1g -Xmx2G -Dfoo=bar"));
+		// the last option wins, like in the JVM
+		assertEquals(1024, LeiningenBuilder.parseMaxHeapMb("-Xmx2g -Xmx1g"));
+	}
+
+	@Test
+	public void testAutoHeap() {
+		long gb = 1024L * 1024 * 1024;
+		// half of 16 GB shared by 4 JVMs
+		assertEquals(2048, LeiningenBuilder.autoHeapMb(16 * gb, 4, 1));
+		assertEquals(4096, LeiningenBuilder.autoHeapMb(16 * gb, 4, 2));
+		// never more than the memory for all heaps, nor less than the minimum
+		assertEquals(8192, LeiningenBuilder.autoHeapMb(16 * gb, 1, 3));
+		assertEquals(LeiningenBuilder.MIN_HEAP_MB, LeiningenBuilder.autoHeapMb(gb, 16, 1));
+	}
+
+	@Test
+	public void testWeight() {
+		LeiningenBuilder builder = new LeiningenBuilder("test # weight=2.5\nclean", null, null, true);
+		builder.setAutoHeap(true);
+		assertEquals(2.5, builder.getWeight("test"), 0);
+		assertEquals(1, builder.getWeight("clean"), 0);
+		assertEquals(2560, builder.getHeapMb("test", 8L * 1024 * 1024 * 1024, 4));
+
+		// an explicit -Xmx wins
+		assertEquals(-1, new LeiningenBuilder("test", null, "-Xmx1g", false).getHeapMb("test", 1L << 34, 1));
+	}
+
+	@Test
+	public void testTrampolineTask() {
+		assertTrue(LeiningenBuilder.isTrampolineTask(TaskGraph.tokenize("run -m my.main")));
+		assertTrue(LeiningenBuilder.isTrampolineTask(TaskGraph.tokenize("with-profile ci test")));
+		assertFalse(LeiningenBuilder.isTrampolineTask(TaskGraph.tokenize("uberjar")));
+		assertFalse(LeiningenBuilder.isTrampolineTask(TaskGraph.tokenize("with-profile run")));
+	}
+
+	@Test
+	public void testChangePaths() {
+		assertEquals(Arrays.asList(), LeiningenBuilder.getChangePaths(null, null));
+		assertEquals(Arrays.asList("modules/api"), LeiningenBuilder.getChangePaths(" modules/api ", null));
+		assertEquals(Arrays.asList("modules/api", "modules/common", "project.clj"),
+				LeiningenBuilder.getChangePaths("modules/api", "modules/common,\nproject.clj\n"));
+	}
+
+	@Test
+	public void testUnchanged() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream log = new PrintStream(output, true);
+		List<List<String>> commands = new ArrayList<>();
+		LeiningenBuilder.Git noChanges = (command, out) -> {
+			commands.add(command);
+			return 0;
+		};
+
+		// without both commits, git is not asked
+		assertFalse(LeiningenBuilder.isUnchanged(null, "b2", Arrays.asList(), noChanges, log));
+		assertFalse(LeiningenBuilder.isUnchanged("a1", null, Arrays.asList(), noChanges, log));
+		assertTrue(commands.isEmpty());
+		assertTrue(output.toString().contains("no previous successful commit"));
+
+		assertTrue(LeiningenBuilder.isUnchanged("a1", "b2", Arrays.asList("modules/api", "project.clj"), noChanges, log));
+		assertEquals(Arrays.asList("git", "diff", "--name-only", "a1", "b2", "--", "modules/api", "project.clj"),
+				commands.get(0));
+		assertTrue(output.toString().contains("no changes in modules/api, project.clj since a1"));
+
+		assertFalse(LeiningenBuilder.isUnchanged("a1", "b2", Arrays.asList(), (command, out) -> 128, log));
+		assertTrue(output.toString().contains("git diff failed"));
+
+		assertFalse(LeiningenBuilder.isUnchanged("a1", "b2", Arrays.asList(), (command, out) -> {
+			out.write("src/app/core.clj\nproject.clj\n".getBytes(StandardCharsets.UTF_8));
+			return 0;
+		}, log));
+		assertTrue(output.toString().contains("2 files changed in the repository since a1"));
+	}
+
+	@Test(expected = InterruptedException.class)
+	public void testUnchangedInterrupted() throws Exception {
+		LeiningenBuilder.isUnchanged("a1", "b2", Arrays.asList(), (command, out) -> {
+			throw new InterruptedException();
+		}, new PrintStream(new ByteArrayOutputStream()));
+	}
 }
@@ -0,0 +1,29 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MemoryProbeTest {
+
+	private static final String MEMINFO =
+			"MemTotal:       16318976 kB\n"+
+			"MemFree:         1198332 kB\n"+
+			"MemAvailable:    9627664 kB\n"+
+			"Buffers:          396256 kB\n"+
+			"Cached:          7890128 kB\n";
+
+	@Test
+	public void testMeminfo() {
+		assertEquals(16318976L * 1024, MemoryProbe.meminfoValue(MEMINFO, "MemTotal"));
+		assertEquals(9627664L * 1024, MemoryProbe.meminfoValue(MEMINFO, "MemAvailable"));
+		assertEquals(-1, MemoryProbe.meminfoValue(MEMINFO, "SwapTotal"));
+	}
+
+	@Test
+	public void testCgroupLimit() {
+		assertEquals(-1, MemoryProbe.parseLimit("max\n"));
+		assertEquals(-1, MemoryProbe.parseLimit(""));
+		assertEquals(4294967296L, MemoryProbe.parseLimit("4294967296\n"));
+	}
+}
@@ -0,0 +1,188 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class NodeMemoryBudgetTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+	private final PrintStream log = new PrintStream(output, true);
+
+	/**
+	 * Acquires in a new thread, which records the name once it holds the permit.
+	 */
+	private Thread acquire(NodeMemoryBudget budget, String node, int heapMb, String name, List<String> acquired,
+			CountDownLatch release) {
+		Thread thread = new Thread(() -> {
+			try(NodeMemoryBudget.Permit permit = budget.acquire(node, heapMb, log)) {
+				acquired.add(name);
+				release.await();
+			} catch(InterruptedException e) {
+				acquired.add(name + " interrupted");
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(thread.getState() == Thread.State.RUNNABLE || thread.getState() == Thread.State.NEW) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testAcquireAndRelease() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		List<String> acquired = new CopyOnWriteArrayList<>();
+		NodeMemoryBudget.Permit first = budget.acquire("node", 600, log);
+
+		Thread second = acquire(budget, "node", 600, "second", acquired, new CountDownLatch(0));
+		awaitWaiting(second);
+		assertTrue(acquired.isEmpty());
+		assertTrue(output.toString().contains("Waiting for 600 MB of the 1000 MB"));
+
+		// Other nodes have budgets of their own
+		budget.acquire("other", 1000, log).close();
+
+		first.close();
+		second.join(5000);
+		assertEquals(1, acquired.size());
+		assertEquals("second", acquired.get(0));
+	}
+
+	@Test
+	public void testUnlimitedAndOversized() throws Exception {
+		new NodeMemoryBudget(0).acquire("node", 100000, log).close();
+
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		// A heap larger than the budget takes all of it
+		NodeMemoryBudget.Permit all = budget.acquire("node", 5000, log);
+		List<String> acquired = new CopyOnWriteArrayList<>();
+		Thread small = acquire(budget, "node", 1, "small", acquired, new CountDownLatch(0));
+		awaitWaiting(small);
+		all.close();
+		small.join(5000);
+		assertEquals(1, acquired.size());
+	}
+
+	@Test
+	public void testFairness() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		List<String> acquired = new CopyOnWriteArrayList<>();
+		NodeMemoryBudget.Permit held = budget.acquire("node", 800, log);
+		CountDownLatch releaseLarge = new CountDownLatch(1);
+
+		Thread large = acquire(budget, "node", 1000, "large", acquired, releaseLarge);
+		awaitWaiting(large);
+		// Fits in what is left, but must not overtake the large task
+		Thread small = acquire(budget, "node", 100, "small", acquired, new CountDownLatch(0));
+		awaitWaiting(small);
+		assertTrue(acquired.isEmpty());
+
+		held.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(acquired.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("large", acquired.get(0));
+		assertEquals(1, acquired.size());
+		releaseLarge.countDown();
+		large.join(5000);
+		small.join(5000);
+		assertEquals("small", acquired.get(1));
+	}
+
+	@Test
+	public void testResidentHeldOncePerKey() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		NodeMemoryBudget.Permit first = budget.acquireResident("node", "daemon", 600, HOUR, () -> {}, log);
+		NodeMemoryBudget.Permit second = budget.acquireResident("node", "daemon", 600, HOUR, () -> {}, log);
+		// The daemon holds 600 MB for both tasks, 400 MB are left
+		budget.acquire("node", 400, log).close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testIdleResidentEvicted() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		AtomicBoolean stopped = new AtomicBoolean();
+		budget.acquireResident("node", "daemon", 800, HOUR, () -> stopped.set(true), log).close();
+
+		// No task uses the daemon, so a waiting task stops it at once rather than after an hour
+		budget.acquire("node", 500, log).close();
+		assertTrue(stopped.get());
+		assertTrue(output.toString().contains("Stopping idle Leiningen server JVMs"));
+	}
+
+	@Test
+	public void testResidentInUseNotEvicted() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		AtomicBoolean stopped = new AtomicBoolean();
+		NodeMemoryBudget.Permit daemon = budget.acquireResident("node", "daemon", 800, HOUR,
+				() -> stopped.set(true), log);
+		List<String> acquired = new CopyOnWriteArrayList<>();
+
+		Thread task = acquire(budget, "node", 500, "task", acquired, new CountDownLatch(0));
+		Thread.sleep(1500);
+		assertTrue(acquired.isEmpty());
+		assertFalse(stopped.get());
+
+		daemon.close();
+		task.join(5000);
+		assertEquals(1, acquired.size());
+		assertTrue(stopped.get());
+	}
+
+	@Test
+	public void testResidentWaitInterrupted() throws Exception {
+		NodeMemoryBudget budget = new NodeMemoryBudget(1000);
+		NodeMemoryBudget.Permit held = budget.acquire("node", 1000, log);
+		CountDownLatch waiting = new CountDownLatch(2);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Runnable daemonTask = () -> {
+			waiting.countDown();
+			try {
+				budget.acquireResident("node", "daemon", 600, HOUR, () -> {}, log).close();
+				failure.set(new AssertionError("acquired"));
+			} catch(InterruptedException e) {
+				// aborted
+			}
+		};
+		// The second task of the same daemon waits for the first one
+		Thread first = new Thread(daemonTask);
+		Thread second = new Thread(daemonTask);
+		first.start();
+		second.start();
+		waiting.await();
+		awaitWaiting(first);
+		awaitWaiting(second);
+
+		first.interrupt();
+		second.interrupt();
+		first.join(5000);
+		second.join(5000);
+		assertFalse(first.isAlive());
+		assertFalse(second.isAlive());
+		assertNull(failure.get());
+
+		// Nothing is left held
+		held.close();
+		budget.acquire("node", 1000, log).close();
+	}
+}
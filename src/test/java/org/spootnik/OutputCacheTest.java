@@ -0,0 +1,117 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OutputCacheTest {
+
+	private final File dir;
+	private final File cache;
+
+	public OutputCacheTest() throws Exception {
+		dir = Files.createTempDirectory("project").toFile();
+		cache = Files.createTempDirectory("cache").toFile();
+	}
+
+	private void write(String path, String content) throws Exception {
+		File file = new File(dir, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String read(String path) throws Exception {
+		return new String(Files.readAllBytes(new File(dir, path).toPath()), StandardCharsets.UTF_8);
+	}
+
+	private String key(List<String> inputs) throws Exception {
+		return new OutputCache.Key(dir.getPath(), inputs, "uberjar", "java", "lein.jar", cache.getPath(),
+				new File(cache, "stat-index").getPath()).call();
+	}
+
+	@Test
+	public void testInfer() {
+		ProjectFile project = ProjectFile.parse("(defproject app \"1.0\" :source-paths [\"src/clj\"]\n"
+				+ "  :profiles {:uberjar {:aot :all :resource-paths [\"prod\"]}})");
+		assertEquals(Arrays.asList("project.clj", "profiles.clj", "resources/**", "prod/**", "src/clj/**"),
+				OutputCache.inferInputs(project));
+		assertEquals(Arrays.asList("target/uberjar"), OutputCache.inferOutputs(Arrays.asList("uberjar"), project));
+		assertNull(OutputCache.inferOutputs(Arrays.asList("test"), project));
+		assertEquals(Arrays.asList("out/uberjar"), OutputCache.inferOutputs(Arrays.asList("uberjar"),
+				ProjectFile.parse("(defproject app \"1.0\" :target-path \"out/%s/\")")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testComputedInputs() {
+		OutputCache.inferInputs(ProjectFile.parse("(defproject app \"1.0\" :source-paths ~(vec [\"src\"]))"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutsidePaths() {
+		OutputCache.paths("target/uberjar,../other");
+	}
+
+	@Test
+	public void testKey() throws Exception {
+		write("project.clj", "(defproject app \"1.0\")");
+		write("src/app/core.clj", "(ns app.core)");
+		write("doc/README.md", "docs");
+		List<String> inputs = Arrays.asList("project.clj", "src/**");
+		assertEquals(Arrays.asList("project.clj", "src/app/core.clj"), OutputCache.matching(dir, inputs));
+
+		String key = key(inputs);
+		write("doc/README.md", "more docs");
+		assertEquals(key, key(inputs));
+		write("src/app/core.clj", "(ns app.core) (defn f [])");
+		assertFalse(key.equals(key(inputs)));
+	}
+
+	@Test
+	public void testDirectoryInputs() throws Exception {
+		write("project.clj", "(defproject app \"1.0\")");
+		write("src/app/core.clj", "(ns app.core)");
+		// Directories without wildcards stand for all their files, missing paths for none
+		List<String> inputs = Arrays.asList("project.clj", "src", "missing");
+		assertEquals(Arrays.asList("project.clj", "src/app/core.clj"), OutputCache.matching(dir, inputs));
+
+		String key = key(inputs);
+		write("src/app/core.clj", "(ns app.core) (defn f [])");
+		assertFalse(key.equals(key(inputs)));
+	}
+
+	@Test
+	public void testStoreAndRestore() throws Exception {
+		write("target/uberjar/app.jar", "jar");
+		write("target/uberjar/classes/app/core.class", "jar");
+		List<String> outputs = Collections.singletonList("target/uberjar");
+
+		assertEquals(-1, (int) new OutputCache.Restore(cache.getPath(), dir.getPath(), "k1").call());
+		assertEquals(2, (int) new OutputCache.Store(cache.getPath(), dir.getPath(), "k1", outputs).call());
+		// Files with the same content share a blob
+		assertEquals(1, new File(cache, "blobs").listFiles().length);
+
+		hudson.Util.deleteRecursive(new File(dir, "target"));
+		write("target/uberjar/stale.jar", "stale");
+		assertEquals(2, (int) new OutputCache.Restore(cache.getPath(), dir.getPath(), "k1").call());
+		assertEquals("jar", read("target/uberjar/app.jar"));
+		assertEquals("jar", read("target/uberjar/classes/app/core.class"));
+		assertFalse(new File(dir, "target/uberjar/stale.jar").exists());
+	}
+
+	@Test
+	public void testActionSummary() {
+		OutputCacheAction action = new OutputCacheAction();
+		assertEquals("Leiningen output cache: no cache activity", action.getSummary());
+		action.hit();
+		action.miss();
+		action.miss();
+		assertEquals("Leiningen output cache: 1 hits, 2 misses, 0 evictions", action.getSummary());
+	}
+}
@@ -0,0 +1,139 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ProjectFileTest {
+
+	@Test
+	public void testRead() {
+		ProjectFile project = ProjectFile.parse(
+				"; my project\n"+
+				"(def version \"1.0\")\n"+
+				"(defproject my/app ~version\n"+
+				"  :description \"An \\\"app\\\"\"\n"+
+				"  :dependencies [[org.clojure/clojure \"1.10.0\"]]\n"+
+				"  :main ^:skip-aot my.app\n"+
+				"  :jvm-opts [\"-Xmx1g\" #_\"-Xmx2g\"]\n"+
+				"  :target-path \"target/%s\", :aot #{my.app}\n"+
+				"  :profiles {:dev {:source-paths [\"dev\"]}}\n"+
+				"  :repl-options {:init ~(println \"hi\")}\n"+
+				"  :jar-exclusions [#\"\\.swp$\"]\n"+
+				"  :min-lein-version nil)");
+
+		assertEquals("An \"app\"", project.get("description"));
+		assertEquals(new ProjectFile.Symbol("my.app"), project.get("main"));
+		assertEquals(Arrays.asList("-Xmx1g"), project.get("jvm-opts"));
+		assertEquals("target/%s", project.get("target-path"));
+		assertTrue(ProjectFile.isStatic(project.get("dependencies")));
+		assertTrue(ProjectFile.isStatic(project.get("profiles")));
+		assertEquals(Arrays.asList("dev"),
+				((Map<?,?>) ((Map<?,?>) project.get("profiles")).get(new ProjectFile.Keyword("dev")))
+					.get(new ProjectFile.Keyword("source-paths")));
+		assertFalse(ProjectFile.isStatic(project.get("repl-options")));
+		assertTrue(project.has("min-lein-version"));
+		assertNull(project.get("min-lein-version"));
+		assertFalse(project.has("plugins"));
+	}
+
+	@Test
+	public void testMetadata() {
+		ProjectFile project = ProjectFile.parse(
+				"(defproject app \"1.0\" :clean-targets ^{:protect false} ^:extra [\"out\"] :aot [app.core])");
+		Map<Object,Object> meta = project.meta(project.get("clean-targets"));
+		assertEquals(Boolean.FALSE, meta.get(new ProjectFile.Keyword("protect")));
+		assertEquals(Boolean.TRUE, meta.get(new ProjectFile.Keyword("extra")));
+		assertTrue(project.meta(project.get("aot")).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnbalanced() {
+		ProjectFile.parse("(defproject app \"1.0\" :dependencies [[a \"1\"]");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoDefproject() {
+		ProjectFile.parse("(ns user)");
+	}
+
+	private String cleanError(String source) {
+		try {
+			NativeClean.targets(ProjectFile.parse(source));
+		} catch(IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		fail("expected clean to be left to Leiningen");
+		return null;
+	}
+
+	@Test
+	public void testCleanTargets() {
+		assertEquals(Arrays.asList("target"), NativeClean.targets(ProjectFile.parse("(defproject app \"1.0\")")));
+		assertEquals(Arrays.asList("out", "out/classes", "resources/public/js"), NativeClean.targets(ProjectFile.parse(
+				"(defproject app \"1.0\" :target-path \"out/%s/\"\n"+
+				"  :clean-targets ^{:protect false} [:target-path :compile-path \"resources/public/js\"])")));
+
+		assertEquals(":clean-targets refers to :source-paths, which is not set in project.clj",
+				cleanError("(defproject app \"1.0\" :clean-targets [:source-paths])"));
+		assertEquals(":clean-targets is computed",
+				cleanError("(defproject app \"1.0\" :clean-targets ~(conj [] \"out\"))"));
+		assertEquals("clean target ../shared is not inside the project",
+				cleanError("(defproject app \"1.0\" :clean-targets [\"../shared\"])"));
+		assertEquals("a profile sets :clean-targets or :target-path",
+				cleanError("(defproject app \"1.0\" :profiles {:ci {:target-path \"ci\"}})"));
+		assertEquals("clean target src is not under :target-path or :compile-path, and :clean-targets is protected",
+				cleanError("(defproject app \"1.0\" :clean-targets [:target-path \"src\"])"));
+		assertEquals("clean target resources/public/js is not under :target-path or :compile-path,"
+				+ " and :clean-targets is protected",
+				cleanError("(defproject app \"1.0\" :clean-targets ^{:protect true} [\"resources/public/js\"])"));
+		assertEquals(Arrays.asList("target", "target/stale"), NativeClean.targets(ProjectFile.parse(
+				"(defproject app \"1.0\" :clean-targets [:target-path \"target/stale\"])")));
+		assertEquals("project.clj sets :hooks",
+				cleanError("(defproject app \"1.0\" :hooks [leiningen.cljsbuild])"));
+	}
+
+	@Test
+	public void testCleanDeletes() throws Exception {
+		File dir = Files.createTempDirectory("native-clean").toFile();
+		try {
+			new File(dir, "target/default/classes").mkdirs();
+			new File(dir, "target/default/classes/app.class").createNewFile();
+			new File(dir, "target/app.jar").createNewFile();
+			new File(dir, "src").mkdirs();
+
+			new NativeClean.Delete(dir.getPath(), Arrays.asList("target", "missing")).call();
+
+			assertFalse(new File(dir, "target").exists());
+			assertTrue(new File(dir, "src").exists());
+		} finally {
+			hudson.Util.deleteRecursive(dir);
+		}
+	}
+
+	@Test
+	public void testProfilesFiles() throws Exception {
+		File dir = Files.createTempDirectory("native-clean").toFile();
+		File leinHome = Files.createTempDirectory("lein-home").toFile();
+		try {
+			assertNull(new NativeClean.ProfilesFile(dir.getPath(), leinHome.getPath()).call());
+
+			new File(leinHome, "profiles.d").mkdirs();
+			new File(leinHome, "profiles.d/user.clj").createNewFile();
+			assertEquals(new File(leinHome, "profiles.d/user.clj").getPath(),
+					new NativeClean.ProfilesFile(dir.getPath(), leinHome.getPath()).call());
+
+			new File(dir, "profiles.clj").createNewFile();
+			assertEquals(new File(dir, "profiles.clj").getPath(),
+					new NativeClean.ProfilesFile(dir.getPath(), leinHome.getPath()).call());
+		} finally {
+			hudson.Util.deleteRecursive(dir);
+			hudson.Util.deleteRecursive(leinHome);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class RemoteCacheTest {
+
+	/**
+	 * A server storing what is put to a path in memory.
+	 */
+	private static HttpServer server(Map<String,byte[]> files, ExecutorService executor) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			byte[] body;
+			try(InputStream in = exchange.getRequestBody()) {
+				body = IOUtils.toByteArray(in);
+			}
+			switch(exchange.getRequestMethod()) {
+			case "PUT":
+				files.put(path, body);
+				exchange.sendResponseHeaders(201, -1);
+				break;
+			case "HEAD":
+				exchange.sendResponseHeaders(files.containsKey(path) ? 200 : 404, -1);
+				break;
+			default:
+				byte[] content = files.get(path);
+				if(content == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else {
+					exchange.sendResponseHeaders(200, content.length);
+					try(OutputStream out = exchange.getResponseBody()) {
+						out.write(content);
+					}
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void testShareOutputs() throws Exception {
+		Map<String,byte[]> files = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		HttpServer server = server(files, executor);
+		try {
+			String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/lein";
+			File project = Files.createTempDirectory("project").toFile();
+			File cache = Files.createTempDirectory("cache").toFile();
+			new File(project, "target/uberjar").mkdirs();
+			Files.write(new File(project, "target/uberjar/app.jar").toPath(), "jar".getBytes("UTF-8"));
+			Files.write(new File(project, "target/uberjar/app-standalone.jar").toPath(), "jar".getBytes("UTF-8"));
+			new OutputCache.Store(cache.getPath(), project.getPath(), "k1",
+					Collections.singletonList("target/uberjar")).call();
+
+			assertFalse(new RemoteCache.Download(cache.getPath(), url, "k1").call());
+			assertEquals(1, (int) new RemoteCache.Upload(cache.getPath(), url, "k1").call());
+			assertEquals(2, files.size());
+			assertTrue(files.containsKey("/lein/ac/k1"));
+			// blobs the server has are not uploaded again
+			assertEquals(0, (int) new RemoteCache.Upload(cache.getPath(), url, "k1").call());
+
+			// Another node
+			File otherProject = Files.createTempDirectory("project").toFile();
+			File otherCache = Files.createTempDirectory("cache").toFile();
+			assertTrue(new RemoteCache.Download(otherCache.getPath(), url, "k1").call());
+			assertEquals(2, (int) new OutputCache.Restore(otherCache.getPath(), otherProject.getPath(), "k1").call());
+			assertEquals("jar", new String(Files.readAllBytes(
+					new File(otherProject, "target/uberjar/app-standalone.jar").toPath()), "UTF-8"));
+
+			// Corrupted blobs are rejected
+			for(String path : files.keySet()) {
+				if(path.contains("/cas/")) {
+					files.put(path, "tampered".getBytes("UTF-8"));
+				}
+			}
+			File thirdCache = Files.createTempDirectory("cache").toFile();
+			try {
+				new RemoteCache.Download(thirdCache.getPath(), url, "k1").call();
+				fail("expected the checksum to not match");
+			} catch(IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+			}
+			assertFalse(OutputCache.manifest(thirdCache, "k1").exists());
+		} finally {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+}
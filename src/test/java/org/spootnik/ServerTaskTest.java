@@ -0,0 +1,107 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class ServerTaskTest {
+
+	private final File dir;
+
+	public ServerTaskTest() throws IOException {
+		dir = Files.createTempDirectory("server-task").toFile();
+	}
+
+	@Test
+	public void testEnvironmentMap() {
+		Map<String,String> env = new HashMap<>();
+		env.put("A", "say \"hi\"\nbye\\");
+		String map = LeinServer.map(env);
+		assertFalse(map.contains("\n"));
+		assertEquals(env, FakeLeinServer.parseMap(map));
+	}
+
+	@Test
+	public void testCancelledDaemonTaskLeavesNoProcess() throws Exception {
+		assertCancelLeavesNoProcess(0);
+	}
+
+	@Test
+	public void testCancelledPoolTaskLeavesNoProcess() throws Exception {
+		assertCancelLeavesNoProcess(1);
+	}
+
+	private void assertCancelLeavesNoProcess(int poolSize) throws Exception {
+		if(!new File("/proc/self/environ").canRead()) {
+			// processes are found through /proc
+			return;
+		}
+		String taskId = UUID.randomUUID().toString();
+		List<String> command = Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", new File(FakeLeinServer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath(),
+				FakeLeinServer.class.getName());
+		Map<String,String> env = new HashMap<>();
+		env.put(LeiningenBuilder.TASK_ID_VAR, taskId);
+		ServerTask task = new ServerTask(command, "", dir.getPath(), env, Arrays.asList("test"),
+				new StreamTaskListener(new ByteArrayOutputStream()), poolSize, taskId);
+		Thread thread = new Thread(() -> {
+			try {
+				task.call();
+			} catch(IOException e) {
+				// the server was stopped
+			}
+		});
+		thread.start();
+
+		ProcessRss processes = new ProcessRss(LeiningenBuilder.TASK_ID_VAR, taskId);
+		long deadline = System.currentTimeMillis() + 30000;
+		while(processes.call() < 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertTrue("the forked process carries the task id", processes.call() >= 0);
+
+		// What the builder does when the task is cancelled
+		kill(LeiningenBuilder.TASK_ID_VAR + "=" + taskId);
+		new ServerTask.Stop(taskId).call();
+
+		thread.join(30000);
+		assertFalse(thread.isAlive());
+		deadline = System.currentTimeMillis() + 10000;
+		while(processes.call() >= 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(-1L, (long) processes.call());
+	}
+
+	/**
+	 * Kills the processes with the variable in their environment, like
+	 * <tt>Launcher.kill</tt> does.
+	 */
+	private static void kill(String cookie) throws Exception {
+		File[] processes = new File("/proc").listFiles((d, name) -> name.chars().allMatch(Character::isDigit));
+		for(File process : processes) {
+			try {
+				String environ = new String(Files.readAllBytes(new File(process, "environ").toPath()),
+						StandardCharsets.UTF_8);
+				if(Arrays.asList(environ.split("\0")).contains(cookie)) {
+					new ProcessBuilder("kill", "-9", process.getName()).start().waitFor();
+				}
+			} catch(IOException e) {
+				// the process exited or belongs to another user
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StatIndexTest {
+
+	private static File write(File dir, String path, byte[] content, long modified) throws Exception {
+		File file = new File(dir, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content);
+		file.setLastModified(modified);
+		return file;
+	}
+
+	@Test
+	public void testRehashChangedFiles() throws Exception {
+		File dir = Files.createTempDirectory("project").toFile();
+		File indexFile = new File(Files.createTempDirectory("index").toFile(), "index");
+		long old = System.currentTimeMillis() - 60000;
+		write(dir, "src/a.clj", "(ns a)".getBytes("UTF-8"), old);
+		write(dir, "src/b.clj", "(ns b)".getBytes("UTF-8"), old);
+		List<String> paths = Arrays.asList("src/a.clj", "src/b.clj");
+
+		StatIndex index = StatIndex.load(indexFile);
+		Map<String,String> hashes = index.hashAll(dir, paths);
+		assertEquals(2, index.rehashed());
+		index.save();
+
+		index = StatIndex.load(indexFile);
+		assertEquals(hashes, index.hashAll(dir, paths));
+		assertEquals(0, index.rehashed());
+		index.save();
+
+		// Same size, new modification time
+		write(dir, "src/b.clj", "(ns c)".getBytes("UTF-8"), old + 1000);
+		index = StatIndex.load(indexFile);
+		Map<String,String> changed = index.hashAll(dir, paths);
+		assertEquals(1, index.rehashed());
+		assertEquals(hashes.get("src/a.clj"), changed.get("src/a.clj"));
+		assertFalse(hashes.get("src/b.clj").equals(changed.get("src/b.clj")));
+		index.save();
+
+		// Files modified too recently to trust their stat are hashed every time
+		write(dir, "src/a.clj", "(ns d)".getBytes("UTF-8"), System.currentTimeMillis());
+		index = StatIndex.load(indexFile);
+		index.hashAll(dir, paths);
+		index.save();
+		index = StatIndex.load(indexFile);
+		index.hashAll(dir, paths);
+		assertEquals(1, index.rehashed());
+	}
+
+	@Test
+	public void testLargeFiles() throws Exception {
+		File dir = Files.createTempDirectory("project").toFile();
+		byte[] content = new byte[3 << 20];
+		new Random(42).nextBytes(content);
+		File file = write(dir, "app.jar", content, System.currentTimeMillis());
+		assertEquals(OutputCache.hex(MessageDigest.getInstance("SHA-256").digest(content)), OutputCache.sha256(file));
+	}
+
+	@Test
+	public void testTasksShareTheIndex() throws Exception {
+		File dir = Files.createTempDirectory("project").toFile();
+		File indexFile = new File(Files.createTempDirectory("index").toFile(), "index");
+		long old = System.currentTimeMillis() - 60000;
+		write(dir, "project.clj", "(defproject app \"1.0\")".getBytes("UTF-8"), old);
+		write(dir, "src/a/b.clj", "(ns a.b)".getBytes("UTF-8"), old);
+		write(dir, "src/gone.clj", "(ns gone)".getBytes("UTF-8"), old);
+
+		StatIndex.hashAll(indexFile, dir, Arrays.asList("project.clj"));
+		StatIndex.hashAll(indexFile, dir, Arrays.asList("src/a/b.clj", "src/gone.clj"));
+		new File(dir, "src/gone.clj").delete();
+
+		StatIndex index = StatIndex.load(indexFile);
+		index.hashAll(dir, Arrays.asList("project.clj", "src/a/b.clj"));
+		assertEquals(0, index.rehashed());
+		index.save();
+		// Files that no longer exist are dropped
+		assertEquals(2, Files.readAllLines(indexFile.toPath()).size());
+	}
+}
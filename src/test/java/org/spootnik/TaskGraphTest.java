@@ -0,0 +1,114 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TaskGraphTest {
+
+	private TaskGraph compile(String tasks) {
+		return TaskGraph.compile(new LeiningenBuilder(null, null, null, false).parseLeinTasks(tasks));
+	}
+
+	private String error(String tasks) {
+		try {
+			compile(tasks);
+		} catch(IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		fail("expected an invalid graph: " + tasks);
+		return null;
+	}
+
+	@Test
+	public void testTopologicalOrder() {
+		TaskGraph graph = compile(
+				"uberjar: compile; cljsbuild once prod\n"+
+				"compile: deps\n"+
+				"cljsbuild once prod: deps\n"+
+				"deps: clean\n"+
+				"clean\n");
+
+		assertEquals(5, graph.size());
+		for(int i = 0; i < graph.size(); i++) {
+			for(int dep : graph.dependencies(i)) {
+				assertTrue(graph.name(i) + " must come after " + graph.name(dep), dep < i);
+			}
+		}
+		assertEquals(0, graph.indexOf("clean"));
+		assertEquals(4, graph.indexOf("uberjar"));
+		assertEquals(2, graph.dependents(graph.indexOf("deps")).length);
+	}
+
+	@Test
+	public void testUnknownDependency() {
+		assertEquals("Task \"compile\" depends on \"dep\", which is not a task",
+				error("deps\ncompile: dep"));
+	}
+
+	@Test
+	public void testCycle() {
+		assertEquals("Tasks depend on each other: compile -> test -> compile",
+				error("compile: test\ntest: compile\nuberjar: compile"));
+		assertEquals("Tasks depend on each other: compile -> compile",
+				error("compile: compile"));
+	}
+
+	@Test
+	public void testBlankLines() {
+		assertEquals(2, compile("clean\n\ndeps: clean;\n").size());
+	}
+
+	@Test
+	public void testPlan() {
+		TaskGraph graph = compile(
+				"clean\n"+
+				"deps: clean\n"+
+				"compile: deps\n"+
+				"cljsbuild once prod: deps\n"+
+				"uberjar: compile; cljsbuild once prod");
+
+		assertEquals(Arrays.asList(
+				Arrays.asList("clean"),
+				Arrays.asList("deps"),
+				Arrays.asList("cljsbuild once prod", "compile"),
+				Arrays.asList("uberjar")), graph.plan());
+	}
+
+	@Test
+	public void testArguments() {
+		TaskGraph graph = compile("with-profile ci test\nrun -m \"my.main\" 'two words': with-profile ci test");
+
+		assertEquals(Arrays.asList("with-profile", "ci", "test"), graph.arguments(graph.indexOf("with-profile ci test")));
+		assertEquals(Arrays.asList("run", "-m", "my.main", "two words"),
+				graph.arguments(graph.indexOf("run -m \"my.main\" 'two words'")));
+	}
+
+	@Test
+	public void testAttributes() {
+		TaskGraph graph = TaskGraph.compile("clean # profile=startup cheap\nuberjar: clean #profile=throughput\ntest: clean");
+
+		assertEquals(3, graph.size());
+		assertEquals("startup", graph.attribute(graph.indexOf("clean"), "profile"));
+		assertEquals("throughput", graph.attribute(graph.indexOf("uberjar"), "profile"));
+		assertNull(graph.attribute(graph.indexOf("test"), "profile"));
+		assertEquals("true", graph.attribute(graph.indexOf("clean"), "cheap"));
+		assertEquals(Arrays.asList("clean"), graph.toMap().get("uberjar"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownAttribute() {
+		TaskGraph.compile("clean # colour=blue");
+	}
+
+	@Test
+	public void testAutoProfile() {
+		assertEquals(JvmProfile.DEFAULT, JvmProfile.AUTO.resolve(-1));
+		assertEquals(JvmProfile.STARTUP, JvmProfile.AUTO.resolve(4000));
+		assertEquals(JvmProfile.THROUGHPUT, JvmProfile.AUTO.resolve(120000));
+		assertEquals(JvmProfile.STARTUP, JvmProfile.STARTUP.resolve(120000));
+		assertEquals(JvmProfile.THROUGHPUT, JvmProfile.forName("Throughput"));
+	}
+}
@@ -0,0 +1,43 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TaskHistoryTest {
+
+	@Test
+	public void testMedian() {
+		assertEquals(-1, TaskHistory.median(Arrays.asList()));
+		assertEquals(3, TaskHistory.median(Arrays.asList(5L, 1L, 3L)));
+		assertEquals(2, TaskHistory.median(Arrays.asList(4L, 1L, 3L, 1L)));
+	}
+
+	@Test
+	public void testRecord() throws Exception {
+		File jobDir = Files.createTempDirectory("history").toFile();
+
+		TaskHistory history = TaskHistory.forJob(jobDir);
+		history.record("uberjar", 60000, 0, 800000);
+		history.record("uberjar", 40000, 0, 900000);
+		history.record("uberjar", 50000, 0, -1);
+		// failed runs do not count
+		history.record("uberjar", 1000, 1, 100);
+		history.record("clean", 2000, 0, -1);
+
+		assertEquals(50000, history.medianDuration("uberjar"));
+		assertEquals(850000, history.medianPeakRssKb("uberjar"));
+		assertEquals(-1, history.medianPeakRssKb("clean"));
+		assertEquals(-1, history.medianDuration("test"));
+		// tasks that never ran are estimated like the median task
+		assertEquals(26000, history.estimate("test"));
+
+		// builds of the job share it
+		assertSame(history, TaskHistory.forJob(jobDir));
+		assertEquals(5, Files.readAllLines(new File(jobDir, TaskHistory.FILE_NAME).toPath()).size());
+	}
+}
@@ -0,0 +1,222 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TaskSchedulerTest {
+
+	private final PrintStream log = new PrintStream(new ByteArrayOutputStream());
+
+	private TaskGraph graph(String tasks) {
+		return TaskGraph.compile(new LeiningenBuilder(null, null, null, false).parseLeinTasks(tasks));
+	}
+
+	@Test
+	public void testDependencyOrder() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph(
+				"clean\n"+
+				"deps: clean\n"+
+				"compile: deps\n"+
+				"uberjar: compile; deps"), executor, 4, log)
+			.run(t -> started.add(t));
+		executor.shutdown();
+
+		assertTrue(success);
+		assertEquals(4, started.size());
+		assertTrue(started.indexOf("clean") < started.indexOf("deps"));
+		assertTrue(started.indexOf("deps") < started.indexOf("compile"));
+		assertTrue(started.indexOf("compile") < started.indexOf("uberjar"));
+	}
+
+	@Test
+	public void testFailureStopsDependents() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph(
+				"clean\n"+
+				"deps: clean\n"+
+				"compile: deps"), executor, 4, log)
+			.run(t -> started.add(t) && !t.equals("deps"));
+		executor.shutdown();
+
+		assertFalse(success);
+		assertFalse(started.contains("compile"));
+	}
+
+	@Test
+	public void testMaxRunning() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+
+		boolean success = new TaskScheduler(graph("a\nb\nc\nd\ne"), executor, 2, log)
+			.run(t -> {
+				peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(20);
+				} catch(InterruptedException e) {
+					return false;
+				}
+				running.decrementAndGet();
+				return true;
+			});
+		executor.shutdown();
+
+		assertTrue(success);
+		assertEquals(2, peak.get());
+	}
+
+	@Test
+	public void testDelayedAdmission() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+
+		// "b" is only admitted when nothing else is running
+		boolean success = new TaskScheduler(graph("a\nb"), executor, 4, log)
+			.run(t -> started.add(t), (t, running) -> !t.equals("b") || running == 0);
+		executor.shutdown();
+
+		assertTrue(success);
+		assertEquals(2, started.size());
+	}
+
+	@Test
+	public void testCriticalPathFirst() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+
+		// With a single slot, the long chain through "cljsbuild" must start before "docs" and "lint"
+		boolean success = new TaskScheduler(graph(
+				"docs\n"+
+				"lint\n"+
+				"compile\n"+
+				"cljsbuild: compile\n"+
+				"uberjar: cljsbuild"), executor, 1, log)
+			.estimates(t -> t.equals("cljsbuild") ? 60 : 5)
+			.run(t -> started.add(t));
+		executor.shutdown();
+
+		assertTrue(success);
+		assertEquals("compile", started.get(0));
+		assertEquals("cljsbuild", started.get(1));
+	}
+
+	@Test
+	public void testFailFastCancelsRunningTasks() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		CountDownLatch killed = new CountDownLatch(1);
+		List<String> cancelled = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph("slow\nbroken\nafter: broken"), executor, 4, log)
+			.cancellation(tasks -> {
+				cancelled.addAll(tasks);
+				killed.countDown();
+			})
+			.run(t -> {
+				if(t.equals("slow")) {
+					// runs until killed
+					try {
+						killed.await(10, TimeUnit.SECONDS);
+					} catch(InterruptedException e) {
+						// killed anyway
+					}
+					return false;
+				}
+				return !t.equals("broken");
+			});
+		executor.shutdown();
+
+		assertFalse(success);
+		assertEquals(Collections.singletonList("slow"), cancelled);
+	}
+
+	@Test
+	public void testKeepGoing() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph(
+				"broken\n"+
+				"after: broken\n"+
+				"a\n"+
+				"b: a"), executor, 1, log)
+			.keepGoing(true)
+			.estimates(t -> t.equals("broken") ? 10 : 1)
+			.run(t -> started.add(t) && !t.equals("broken"));
+		executor.shutdown();
+
+		assertFalse(success);
+		assertTrue(started.contains("b"));
+		assertFalse(started.contains("after"));
+	}
+
+	@Test
+	public void testBatchesCheapSiblings() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+		List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph(
+				"compile\n"+
+				"pom\n"+
+				"less once: compile\n"+
+				"test2junit: compile\n"+
+				"uberjar: compile\n"+
+				"docs: less once"), executor, 4, log)
+			.batching(t -> !t.equals("compile") && !t.equals("uberjar"), tasks -> {
+				batches.add(tasks);
+				return Arrays.asList(true, false);
+			})
+			.run(t -> started.add(t));
+		executor.shutdown();
+
+		assertFalse(success);
+		// "pom" has different dependencies, "uberjar" is not cheap
+		assertEquals(1, batches.size());
+		assertEquals(new HashSet<>(Arrays.asList("less once", "test2junit")), new HashSet<>(batches.get(0)));
+		assertTrue(started.containsAll(Arrays.asList("compile", "pom", "uberjar")));
+	}
+
+	@Test
+	public void testBatchesOnlyTheSameGroup() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		List<String> started = new CopyOnWriteArrayList<>();
+		List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+		boolean success = new TaskScheduler(graph(
+				"pom\n"+
+				"check\n"+
+				"kibit # profile=startup"), executor, 4, log)
+			.batchGroup(t -> t.equals("kibit") ? "startup" : "default")
+			.batching(t -> true, tasks -> {
+				batches.add(tasks);
+				return Collections.nCopies(tasks.size(), true);
+			})
+			.run(t -> started.add(t));
+		executor.shutdown();
+
+		assertTrue(success);
+		// "kibit" needs another JVM, so it runs on its own
+		assertEquals(1, batches.size());
+		assertEquals(new HashSet<>(Arrays.asList("pom", "check")), new HashSet<>(batches.get(0)));
+		assertEquals(Arrays.asList("kibit"), started);
+	}
+}
@@ -0,0 +1,32 @@
+package org.spootnik;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.spootnik.TaskStates.Status;
+
+public class TaskStatesTest {
+
+	@Test
+	public void testTransitions() {
+		TaskStates states = new TaskStates(Arrays.asList("clean", "deps", "compile"));
+		assertEquals(3, states.count(Status.PENDING));
+
+		assertTrue(states.transition(0, Status.PENDING, Status.RUNNING));
+		// a task can only leave the status it is in
+		assertFalse(states.transition(0, Status.PENDING, Status.RUNNING));
+		assertTrue(states.transition(0, Status.RUNNING, Status.COMPLETE));
+		assertTrue(states.transition(1, Status.PENDING, Status.RUNNING));
+		assertTrue(states.transition(1, Status.RUNNING, Status.FAILED));
+
+		assertEquals(1, states.count(Status.PENDING));
+		assertEquals(0, states.count(Status.RUNNING));
+		assertEquals(1, states.count(Status.COMPLETE));
+		assertEquals(1, states.count(Status.FAILED));
+		assertEquals(Collections.singletonList("deps"), states.names(Status.FAILED));
+		assertEquals(Collections.singletonList("compile"), states.names(Status.PENDING));
+	}
+}